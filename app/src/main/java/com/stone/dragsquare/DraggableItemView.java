@@ -333,9 +333,17 @@ public class DraggableItemView extends FrameLayout {
     }
 
     public void fillImageView(String imagePath) {
+        fillImageView(imagePath, null);
+    }
+
+    public void fillImageView(String imagePath, byte[] image) {
         this.imagePath = imagePath;
         addView.setVisibility(View.GONE);
-        Glide.with(imageView).load(imagePath).into(imageView);
+        if (image != null) {
+            Glide.with(imageView).load(image).into(imageView);
+        } else {
+            Glide.with(imageView).load(imagePath).into(imageView);
+        }
     }
 
     public String getImagePath() {
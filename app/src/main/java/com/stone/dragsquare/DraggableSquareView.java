@@ -154,10 +154,17 @@ public class DraggableSquareView extends ViewGroup {
      * 给imageView添加图片
      */
     public void fillItemImage(int imageStatus, String imagePath, boolean isModify) {
+        fillItemImage(imageStatus, imagePath, null, isModify);
+    }
+
+    /**
+     * 给imageView添加图片，image为已在内存中的图片数据，不为空时直接显示，不再读取imagePath
+     */
+    public void fillItemImage(int imageStatus, String imagePath, byte[] image, boolean isModify) {
         // 1. 如果是修改图片，直接填充就好
         if (isModify) {
             DraggableItemView itemView = getItemViewByStatus(imageStatus);
-            itemView.fillImageView(imagePath);
+            itemView.fillImageView(imagePath, image);
             return;
         }
 
@@ -165,7 +172,7 @@ public class DraggableSquareView extends ViewGroup {
         for (int i = 0; i < allStatus.length; i++) {
             DraggableItemView itemView = getItemViewByStatus(i);
             if (!itemView.isDraggable()) {
-                itemView.fillImageView(imagePath);
+                itemView.fillImageView(imagePath, image);
                 break;
             }
         }
@@ -12,8 +12,10 @@ import android.view.View;
 import android.widget.Toast;
 
 import com.soundcloud.android.crop.Crop;
+import com.soundcloud.android.crop.CropResult;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -73,14 +75,22 @@ public class MainActivity extends AppCompatActivity {
 
     private void beginCrop(Uri source) {
         Uri destination = Uri.fromFile(new File(getCacheDir(), "cropped_" + System.currentTimeMillis() + ".jpg"));
-        Crop.of(source, destination).asSquare().start(this);
+        Crop.of(source, destination).asSquare().withInMemoryResult().prefetch(this).start(this);
     }
 
     private void handleCrop(int resultCode, Intent result) {
         if (resultCode == RESULT_OK) {
             Uri uri = Crop.getOutput(result);
             String imagePath = uri.toString();
-            dragSquare.fillItemImage(imageStatus, imagePath, isModify);
+            // 裁剪结果已在内存中，直接显示，文件在后台写入
+            CropResult cropResult = Crop.getResult(result);
+            byte[] image = null;
+            if (cropResult != null) {
+                ByteBuffer buffer = cropResult.getBuffer();
+                image = new byte[buffer.remaining()];
+                buffer.get(image);
+            }
+            dragSquare.fillItemImage(imageStatus, imagePath, image, isModify);
 
         } else if (resultCode == Crop.RESULT_ERROR) {
             Toast.makeText(this, Crop.getError(result).getMessage(), Toast.LENGTH_SHORT).show();
@@ -11,6 +11,8 @@ import android.content.Intent;
 import android.net.Uri;
 import android.provider.MediaStore;
 
+import java.util.Arrays;
+
 public class CropBuilderTest extends BaseTestCase {
 
     private Activity activity;
@@ -63,6 +65,61 @@ public class CropBuilderTest extends BaseTestCase {
         assertThat(intent.getIntExtra("max_y", 0)).isEqualTo(300);
     }
 
+    public void testOutputFormatSetAsExtra() {
+        builder.withOutputFormat(Crop.Format.WEBP);
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getStringExtra("output_format")).isEqualTo("WEBP");
+    }
+
+    public void testQualityAndMaxFileSizeSetAsExtras() {
+        builder.withQuality(80).withMaxFileSize(100 * 1024);
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getIntExtra("output_quality", 0)).isEqualTo(80);
+        assertThat(intent.getIntExtra("output_max_bytes", 0)).isEqualTo(100 * 1024);
+    }
+
+    public void testSubjectDetectionSetAsExtra() {
+        builder.withSubjectDetection();
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getBooleanExtra("detect_subject", false)).isTrue();
+    }
+
+    public void testInMemoryResult() {
+        builder.withInMemoryResult();
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getBooleanExtra("in_memory_result", false)).isTrue();
+    }
+
+    public void testRenditions() {
+        builder.withRendition(1080, Crop.Format.JPEG, 90, Uri.parse("file:///large"))
+                .withRendition(160, Crop.Format.WEBP, 70, Uri.parse("file:///small"));
+
+        Intent intent = builder.getIntent(activity);
+
+        assertThat(intent.getIntArrayExtra("rendition_sizes")).isEqualTo(new int[] {1080, 160});
+        assertThat(intent.getStringArrayExtra("rendition_formats")).isEqualTo(new String[] {"JPEG", "WEBP"});
+        assertThat(intent.getIntArrayExtra("rendition_qualities")).isEqualTo(new int[] {90, 70});
+        assertThat(intent.<Uri>getParcelableArrayListExtra("rendition_outputs"))
+                .isEqualTo(Arrays.asList(Uri.parse("file:///large"), Uri.parse("file:///small")));
+    }
+
+    public void testRenditionWithoutFormatIsRejected() {
+        try {
+            builder.withRendition(160, null, 70, Uri.parse("file:///small"));
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertThat(builder.getIntent(activity).hasExtra("rendition_sizes")).isFalse();
+        }
+    }
+
     public void testBuildsIntentWithMultipleOptions() {
         builder.asSquare().withMaxSize(200, 200);
 
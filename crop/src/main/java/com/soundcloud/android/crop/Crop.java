@@ -6,11 +6,15 @@ import android.app.Fragment;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.MediaStore;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Builder for crop Intents and utils for handling result
  */
@@ -25,9 +29,53 @@ public class Crop {
         String ASPECT_Y = "aspect_y";
         String MAX_X = "max_x";
         String MAX_Y = "max_y";
+        String OUTPUT_FORMAT = "output_format";
+        String OUTPUT_QUALITY = "output_quality";
+        String OUTPUT_MAX_BYTES = "output_max_bytes";
+        String DETECT_SUBJECT = "detect_subject";
+        String IN_MEMORY_RESULT = "in_memory_result";
+        String RESULT_KEY = "result_key";
+        String RENDITION_SIZES = "rendition_sizes";
+        String RENDITION_FORMATS = "rendition_formats";
+        String RENDITION_QUALITIES = "rendition_qualities";
+        String RENDITION_OUTPUTS = "rendition_outputs";
         String ERROR = "error";
     }
 
+    /**
+     * Encoding used for the saved image
+     */
+    public enum Format {
+        JPEG(Bitmap.CompressFormat.JPEG, false),
+        PNG(Bitmap.CompressFormat.PNG, true),
+        WEBP(Bitmap.CompressFormat.WEBP, false),
+        /**
+         * Lossless WebP on Android 11 and later. Older platforms only encode lossy WebP, even at
+         * quality 100, so PNG is written there instead.
+         */
+        WEBP_LOSSLESS(losslessWebp(), true);
+
+        final Bitmap.CompressFormat compressFormat;
+        final boolean lossless;
+
+        Format(Bitmap.CompressFormat compressFormat, boolean lossless) {
+            this.compressFormat = compressFormat;
+            this.lossless = lossless;
+        }
+    }
+
+    // Bitmap.CompressFormat.WEBP_LOSSLESS, looked up by name as it is newer than the compile SDK
+    private static Bitmap.CompressFormat losslessWebp() {
+        if (Build.VERSION.SDK_INT >= 30) {
+            try {
+                return Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS");
+            } catch (IllegalArgumentException e) {
+                // Not there after all
+            }
+        }
+        return Bitmap.CompressFormat.PNG;
+    }
+
     private Intent cropIntent;
 
     /**
@@ -79,6 +127,102 @@ public class Crop {
         return this;
     }
 
+    /**
+     * Set the encoding of the saved image, JPEG by default
+     *
+     * @param format Output format
+     */
+    public Crop withOutputFormat(Format format) {
+        cropIntent.putExtra(Extra.OUTPUT_FORMAT, format.name());
+        return this;
+    }
+
+    /**
+     * Set a fixed encoder quality, ignored by lossless formats
+     *
+     * @param quality Quality from 0 to 100, lossy formats encode at 10 or more
+     */
+    public Crop withQuality(int quality) {
+        cropIntent.putExtra(Extra.OUTPUT_QUALITY, quality);
+        return this;
+    }
+
+    /**
+     * Encode at the highest quality (up to the one set with {@link #withQuality(int)}) that keeps
+     * the saved image within a size budget. Ignored by lossless formats.
+     *
+     * @param maxBytes Target size of the saved image in bytes, Exif included
+     */
+    public Crop withMaxFileSize(int maxBytes) {
+        cropIntent.putExtra(Extra.OUTPUT_MAX_BYTES, maxBytes);
+        return this;
+    }
+
+    /**
+     * Place the initial crop area on the detected subject (faces, or else the most detailed
+     * part of the image) instead of the center. Detection runs in the background once the
+     * image is shown, and is skipped if the user moves the crop area first.
+     */
+    public Crop withSubjectDetection() {
+        cropIntent.putExtra(Extra.DETECT_SUBJECT, true);
+        return this;
+    }
+
+    /**
+     * Also save the crop scaled to fit within maxSize x maxSize. All renditions are produced from
+     * a single decode of the crop and written in parallel. Can be called once per rendition.
+     *
+     * @param maxSize     Largest width and height, greater than 0
+     * @param quality     Quality from 0 to 100, lossy formats encode at 10 or more
+     * @param destination Uri for saving this rendition
+     * @throws IllegalArgumentException If an argument is out of range or null
+     */
+    public Crop withRendition(int maxSize, Format format, int quality, Uri destination) {
+        if (maxSize <= 0 || quality < 0 || quality > 100 || format == null || destination == null) {
+            throw new IllegalArgumentException("Invalid rendition: " + maxSize + ", " + format + ", "
+                    + quality + ", " + destination);
+        }
+        cropIntent.putExtra(Extra.RENDITION_SIZES, append(cropIntent.getIntArrayExtra(Extra.RENDITION_SIZES), maxSize));
+        cropIntent.putExtra(Extra.RENDITION_QUALITIES,
+                append(cropIntent.getIntArrayExtra(Extra.RENDITION_QUALITIES), quality));
+        String[] formats = cropIntent.getStringArrayExtra(Extra.RENDITION_FORMATS);
+        formats = formats == null ? new String[1] : Arrays.copyOf(formats, formats.length + 1);
+        formats[formats.length - 1] = format.name();
+        cropIntent.putExtra(Extra.RENDITION_FORMATS, formats);
+        ArrayList<Uri> outputs = cropIntent.getParcelableArrayListExtra(Extra.RENDITION_OUTPUTS);
+        if (outputs == null) {
+            outputs = new ArrayList<Uri>();
+        }
+        outputs.add(destination);
+        cropIntent.putParcelableArrayListExtra(Extra.RENDITION_OUTPUTS, outputs);
+        return this;
+    }
+
+    private static int[] append(int[] array, int value) {
+        array = array == null ? new int[1] : Arrays.copyOf(array, array.length + 1);
+        array[array.length - 1] = value;
+        return array;
+    }
+
+    /**
+     * Hand the result over in memory as a {@link CropResult}. The destination may be null, else
+     * it is written in the background after the result is delivered, so the output Uri of the
+     * result Intent may not be complete yet. Use {@link CropResult#awaitUri()} before reading it.
+     */
+    public Crop withInMemoryResult() {
+        cropIntent.putExtra(Extra.IN_MEMORY_RESULT, true);
+        return this;
+    }
+
+    /**
+     * Start decoding the image for the crop screen now, so that it is ready by the time the
+     * crop Activity has started. Call right before one of the start methods.
+     */
+    public Crop prefetch(Context context) {
+        PreviewCache.prefetch(context, cropIntent.getData());
+        return this;
+    }
+
     /**
      * Send the crop Intent from an Activity
      *
@@ -161,6 +305,17 @@ public class Crop {
         return result.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
     }
 
+    /**
+     * Retrieve the in-memory result of a crop started with {@link #withInMemoryResult()}. It can
+     * be retrieved once.
+     *
+     * @param result Result Intent
+     * @return Result, null if there is none
+     */
+    public static CropResult getResult(Intent result) {
+        return CropResult.take(result.getStringExtra(Extra.RESULT_KEY));
+    }
+
     /**
      * Retrieve error that caused crop to fail
      *
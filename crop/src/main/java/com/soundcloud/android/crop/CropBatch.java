@@ -0,0 +1,283 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crops many images in one go, e.g. to regenerate thumbnails after changing the output size.
+ * Sources are cropped in parallel on a pool sized to the number of cores and the free heap. The
+ * jobs of one source run one after the other on a single worker, sharing its decoder, as a
+ * decoder only decodes one region at a time.
+ */
+public class CropBatch {
+
+    // Bytes per pixel, and how many output-sized bitmaps a job holds at its peak: the region
+    // decoded at up to twice the output size on each side, plus the resized output
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int PEAK_BITMAPS_PER_JOB = 5;
+
+    /**
+     * One crop of the batch
+     */
+    public static class Job {
+
+        private final CropEngine.Source source;
+        private final Rect cropRect;
+        private final CropEngine.Options options;
+        private final Uri destination;
+
+        Job(CropEngine.Source source, Rect cropRect, CropEngine.Options options, Uri destination) {
+            this.source = source;
+            this.cropRect = new Rect(cropRect);
+            this.options = options;
+            this.destination = destination;
+        }
+
+        public CropEngine.Source getSource() {
+            return source;
+        }
+
+        public Uri getDestination() {
+            return destination;
+        }
+    }
+
+    /**
+     * Throughput of a finished batch
+     */
+    public static class Stats {
+        public int succeeded;
+        public int failed;
+        public int parallelism;
+        public long elapsedMs;
+
+        public float getJobsPerSecond() {
+            return elapsedMs > 0 ? (succeeded + failed) * 1000F / elapsedMs : 0F;
+        }
+    }
+
+    /**
+     * Progress callbacks, delivered on the main thread
+     */
+    public interface Listener {
+        /**
+         * @param error Null if the job succeeded
+         */
+        void onJobFinished(Job job, Throwable error, int finished, int total);
+
+        void onBatchFinished(Stats stats);
+    }
+
+    private final Context context;
+    private final CropEngine engine = new CropEngine();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Job> jobs = new ArrayList<Job>();
+    private ThreadPoolExecutor executor;
+    private volatile boolean cancelled;
+
+    public CropBatch(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Add a crop to the batch
+     *
+     * @param cropRect    Crop area in full resolution coordinates of the displayed (rotated) image
+     * @param destination Uri the encoded crop is written to
+     */
+    public CropBatch add(CropEngine.Source source, Rect cropRect, CropEngine.Options options, Uri destination) {
+        if (executor != null) {
+            throw new IllegalStateException("Batch already started");
+        }
+        jobs.add(new Job(source, cropRect, options, destination));
+        return this;
+    }
+
+    /**
+     * Start cropping in the background
+     */
+    public void start(final Listener listener) {
+        if (executor != null) {
+            throw new IllegalStateException("Batch already started");
+        }
+        final int total = jobs.size();
+        final Stats stats = new Stats();
+
+        // Jobs cropping the same source run in order on one worker
+        Map<CropEngine.Source, List<Job>> bySource = new LinkedHashMap<CropEngine.Source, List<Job>>();
+        for (Job job : jobs) {
+            List<Job> group = bySource.get(job.source);
+            if (group == null) {
+                group = new ArrayList<Job>();
+                bySource.put(job.source, group);
+            }
+            group.add(job);
+        }
+        stats.parallelism = calculateParallelism(bySource.size());
+        if (total == 0) {
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    listener.onBatchFinished(stats);
+                }
+            });
+            return;
+        }
+
+        executor = new ThreadPoolExecutor(stats.parallelism, stats.parallelism, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CropExecutor.WorkerFactory("android-crop-batch-"));
+        final ThreadPoolExecutor batchExecutor = executor;
+        final AtomicInteger finished = new AtomicInteger();
+        final long startedAt = SystemClock.elapsedRealtime();
+
+        for (final Map.Entry<CropEngine.Source, List<Job>> group : bySource.entrySet()) {
+            final long enqueuedAt = SystemClock.elapsedRealtime();
+            batchExecutor.execute(new Runnable() {
+                public void run() {
+                    SourceDecoder decoder = new SourceDecoder(group.getKey());
+                    // Later jobs of the source only wait for the one before them
+                    long waitingSince = enqueuedAt;
+                    try {
+                        for (Job job : group.getValue()) {
+                            long runStartedAt = SystemClock.elapsedRealtime();
+                            Throwable error = null;
+                            try {
+                                if (cancelled) {
+                                    throw new CancellationException();
+                                }
+                                runJob(job, decoder);
+                            } catch (CancellationException e) {
+                                error = e;
+                            } catch (Throwable t) {
+                                Log.e("Error cropping " + job.destination, t);
+                                error = t;
+                            }
+                            long now = SystemClock.elapsedRealtime();
+                            CropMetrics.recordJob(CropMetrics.JOB_BATCH, runStartedAt - waitingSince, now - runStartedAt);
+                            waitingSince = now;
+                            onJobFinished(job, error, finished.incrementAndGet(), total, now - startedAt, stats,
+                                    batchExecutor, listener);
+                        }
+                    } finally {
+                        decoder.recycle();
+                    }
+                }
+            });
+        }
+    }
+
+    private void onJobFinished(final Job job, final Throwable error, final int count, final int total, long elapsedMs,
+                               final Stats stats, ThreadPoolExecutor batchExecutor, final Listener listener) {
+        synchronized (stats) {
+            if (error == null) {
+                stats.succeeded++;
+            } else {
+                stats.failed++;
+            }
+            if (count == total) {
+                stats.elapsedMs = elapsedMs;
+                batchExecutor.shutdown();
+            }
+        }
+        mainHandler.post(new Runnable() {
+            public void run() {
+                listener.onJobFinished(job, error, count, total);
+                if (count == total) {
+                    listener.onBatchFinished(stats);
+                }
+            }
+        });
+    }
+
+    /**
+     * Skip the jobs that have not started yet, they finish with a CancellationException.
+     * Running jobs still complete.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void runJob(Job job, SourceDecoder decoder) throws IOException {
+        Bitmap cropped = engine.decodeRegion(decoder.acquire(), job.cropRect, decoder.exifRotation, job.options);
+        if (cropped == null) {
+            throw new IOException("Cannot decode image region");
+        }
+        OutputStream out = null;
+        try {
+            out = context.getContentResolver().openOutputStream(job.destination);
+            if (out == null) {
+                throw new IOException("Cannot open " + job.destination);
+            }
+            engine.encodeOriented(cropped, decoder.exifOrientation, job.options, out);
+        } finally {
+            CropUtil.closeSilently(out);
+            cropped.recycle();
+        }
+    }
+
+    // As many workers as cores, limited so the peak bitmaps of all running jobs fit in half of
+    // the heap that is still free, and to one per source
+    private int calculateParallelism(int sources) {
+        long largestJob = 1;
+        for (Job job : jobs) {
+            int[] size = CropGeometry.outputSize(job.cropRect.width(), job.cropRect.height(),
+                    job.options.maxWidth, job.options.maxHeight);
+            largestJob = Math.max(largestJob, (long) size[0] * size[1] * BYTES_PER_PIXEL * PEAK_BITMAPS_PER_JOB);
+        }
+        int byMemory = (int) Math.max(1, MemoryGovernor.regionBudget() / largestJob);
+        int byCores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(Math.min(byCores, byMemory), sources));
+    }
+
+    // Decoder of one source, opened by its first job and used by one worker at a time
+    private class SourceDecoder {
+
+        private final CropEngine.Source source;
+        private BitmapRegionDecoder decoder;
+        private boolean opened;
+        int exifRotation;
+        int exifOrientation;
+
+        SourceDecoder(CropEngine.Source source) {
+            this.source = source;
+        }
+
+        BitmapRegionDecoder acquire() throws IOException {
+            if (!opened) {
+                opened = true;
+                exifOrientation = engine.readExifOrientation(source);
+                exifRotation = Exif.toRotation(exifOrientation);
+                decoder = source.newRegionDecoder();
+            }
+            if (decoder == null) {
+                throw new IOException("Cannot decode image");
+            }
+            return decoder;
+        }
+
+        void recycle() {
+            if (decoder != null) {
+                decoder.recycle();
+                decoder = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,954 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes, crops, scales and encodes images without any UI, e.g. from a background service.
+ * CropImageActivity is built on top of it. Methods block and should be called off the UI thread.
+ */
+public class CropEngine {
+
+    private static final int EXIF_BUFFER_SIZE = 8192;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int RETRY_STRIPS = 8;
+    // Parallel decodes use several strips per thread, so that the threads finish close together
+    private static final int STRIPS_PER_THREAD = 2;
+    private static final float THUMBNAIL_ASPECT_TOLERANCE = 0.02f;
+    // Smaller sample sizes decode nearly as slowly as the preview itself
+    private static final int MIN_THUMBNAIL_SAMPLE_SIZE = 4;
+
+    /**
+     * Image to crop. Sources are opened once per decode step, so they must be re-readable.
+     */
+    public abstract static class Source {
+
+        /**
+         * @return New stream positioned at the start of the image
+         */
+        public abstract InputStream open() throws IOException;
+
+        BitmapRegionDecoder newRegionDecoder() throws IOException {
+            InputStream is = open();
+            try {
+                return BitmapRegionDecoder.newInstance(is, false);
+            } finally {
+                CropUtil.closeSilently(is);
+            }
+        }
+
+        /**
+         * Image behind a Uri, read from a local file or temp copy where possible
+         */
+        public static Source of(Context context, Uri uri) {
+            return new UriSource(context.getApplicationContext(), uri);
+        }
+
+        public static Source of(File file) {
+            return new FileSource(file);
+        }
+
+        public static Source of(byte[] data) {
+            return new ByteSource(data);
+        }
+
+        /**
+         * Reads the whole stream into memory, since it can only be consumed once
+         */
+        public static Source of(InputStream in) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return new ByteSource(buffer.toByteArray());
+        }
+    }
+
+    private static class UriSource extends Source {
+
+        private final Context context;
+        private final Uri uri;
+
+        UriSource(Context context, Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return CropUtil.openInputStream(context, uri);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof UriSource && uri.equals(((UriSource) o).uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode();
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder() throws IOException {
+            File file = CropUtil.getFromMediaUri(context, context.getContentResolver(), uri);
+            if (file != null && file.canRead()) {
+                return BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+            }
+            return super.newRegionDecoder();
+        }
+    }
+
+    private static class FileSource extends Source {
+
+        private final File file;
+
+        FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FileSource && file.equals(((FileSource) o).file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode();
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder() throws IOException {
+            return BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+        }
+    }
+
+    private static class ByteSource extends Source {
+
+        private final byte[] data;
+
+        ByteSource(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder() throws IOException {
+            return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+        }
+    }
+
+    /**
+     * Output constraints for a crop
+     */
+    public static class Options {
+
+        int maxWidth;
+        int maxHeight;
+        Crop.Format format = Crop.Format.JPEG;
+        int quality = ImageEncoder.DEFAULT_QUALITY;
+        int maxBytes;
+        boolean parallelDecode = true;
+        boolean reducedSize;
+
+        /**
+         * Scale the crop down to fit within width x height, keeping its aspect ratio
+         */
+        public Options withMaxSize(int width, int height) {
+            maxWidth = width;
+            maxHeight = height;
+            return this;
+        }
+
+        public Options withOutputFormat(Crop.Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Ignored for JPEG crops that are copied losslessly, they keep the quality of the source
+         */
+        public Options withQuality(int quality) {
+            this.quality = quality;
+            return this;
+        }
+
+        /**
+         * @see Crop#withMaxFileSize(int)
+         */
+        public Options withMaxFileSize(int maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Let a crop whose output bitmap does not fit in the free heap come out smaller than its
+         * max size instead of failing. The size of the returned bitmap or the encoded image tells
+         * the actual size. Off by default.
+         */
+        public Options withReducedSize(boolean reducedSize) {
+            this.reducedSize = reducedSize;
+            return this;
+        }
+
+        /**
+         * Decode very large crops in strips on several threads, each with a decoder of its own.
+         * On by default, the number of threads follows the cores and the free heap.
+         */
+        public Options withParallelDecode(boolean parallelDecode) {
+            this.parallelDecode = parallelDecode;
+            return this;
+        }
+    }
+
+    /**
+     * Subsampled decode of a source for display
+     */
+    public static class Preview {
+
+        private final Bitmap bitmap;
+        private final int sampleSize;
+        private final int exifOrientation;
+
+        Preview(Bitmap bitmap, int sampleSize, int exifOrientation) {
+            this.bitmap = bitmap;
+            this.sampleSize = sampleSize;
+            this.exifOrientation = exifOrientation;
+        }
+
+        /**
+         * @return Bitmap in source orientation, not rotated
+         */
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * @return Factor between source and preview coordinates, 0 for a thumbnail
+         */
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public int getExifRotation() {
+            return Exif.toRotation(exifOrientation);
+        }
+
+        // Orientation tag of the source, written to JPEG crops as it is
+        int getExifOrientation() {
+            return exifOrientation;
+        }
+    }
+
+    /**
+     * The output bitmap of a crop does not fit in the free heap, and the crop may not come out
+     * smaller, see {@link Options#withReducedSize(boolean)}
+     */
+    public static class OutputTooLargeException extends IOException {
+
+        OutputTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return Rotation in degrees from the source's Exif orientation, 0 if unknown
+     */
+    public int readExifRotation(Source source) {
+        return Exif.toRotation(readExifOrientation(source));
+    }
+
+    // Orientation tag of the source, mirrored ones included
+    int readExifOrientation(Source source) {
+        InputStream is = null;
+        try {
+            is = source.open();
+            return Exif.readOrientation(new BufferedInputStream(is, EXIF_BUFFER_SIZE));
+        } catch (IOException e) {
+            Log.e("Error getting Exif data", e);
+            return Exif.ORIENTATION_NORMAL;
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+    }
+
+    /**
+     * Low resolution stand-in to show while {@link #decodePreview} runs: the embedded Exif
+     * thumbnail when it has the aspect ratio of the image, otherwise a heavily subsampled decode.
+     * Its sample size is 0, since a thumbnail has no power of two relation to the source.
+     *
+     * @param maxSize Longest side of the subsampled decode
+     * @return Thumbnail, or null if there is nothing faster than the preview itself
+     */
+    public Preview decodeThumbnail(Source source, int maxSize) throws IOException {
+        byte[] app1;
+        InputStream is = source.open();
+        try {
+            app1 = Exif.readApp1(new BufferedInputStream(is, EXIF_BUFFER_SIZE));
+        } catch (EOFException e) {
+            app1 = null;
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+        int exifOrientation = Exif.parseOrientation(app1);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        is = source.open();
+        try {
+            BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        byte[] thumbnail = Exif.parseThumbnail(app1);
+        if (thumbnail != null) {
+            options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+            // Some cameras pad thumbnails to 4:3, those would shift the crop when swapped out
+            if (bitmap != null && Math.abs((float) bitmap.getWidth() / bitmap.getHeight()
+                    - (float) width / height) <= THUMBNAIL_ASPECT_TOLERANCE * width / height) {
+                return new Preview(bitmap, 0, exifOrientation);
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+
+        int sampleSize = CropGeometry.previewSampleSize(width, height, maxSize);
+        if (sampleSize < MIN_THUMBNAIL_SAMPLE_SIZE) {
+            return null;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        is = source.open();
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+            return bitmap != null ? new Preview(bitmap, 0, exifOrientation) : null;
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+    }
+
+    /**
+     * Decode the source subsampled by a power of two so that both sides fit within maxSize
+     */
+    public Preview decodePreview(Source source, int maxSize) throws IOException {
+        return decodePreview(source, maxSize, null);
+    }
+
+    /**
+     * As above, decoding into the given config, e.g. RGB_565 to halve the memory of an opaque preview
+     */
+    public Preview decodePreview(Source source, int maxSize, Bitmap.Config config) throws IOException {
+        int exifOrientation = readExifOrientation(source);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream is = source.open();
+        try {
+            BitmapFactory.decodeStream(is, null, options); // Just get image size
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+        int sampleSize = CropGeometry.previewSampleSize(options.outWidth, options.outHeight, maxSize);
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (config != null) {
+            options.inPreferredConfig = config;
+        }
+        is = source.open();
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+            if (bitmap == null) {
+                throw new IOException("Cannot decode image");
+            }
+            return new Preview(bitmap, sampleSize, exifOrientation);
+        } finally {
+            CropUtil.closeSilently(is);
+        }
+    }
+
+    /**
+     * Decode a region of the source, scaled down to the output size. Only a bitmap close to the
+     * output size is allocated: the region is subsampled while decoding, then resized exactly.
+     * When the heap is short the region is decoded in strips. If even the output bitmap does not
+     * fit, the decode fails, unless {@link Options#withReducedSize(boolean)} allows a smaller one.
+     *
+     * @param cropRect     Crop area in full resolution coordinates of the displayed (rotated) image
+     * @param exifRotation Rotation of the source
+     * @return Cropped bitmap in source orientation, smaller than the output size only when allowed
+     * @throws OutputTooLargeException If the output bitmap does not fit in the free heap
+     * @throws IllegalArgumentException If cropRect is outside of the image
+     */
+    public Bitmap decodeRegion(Source source, Rect cropRect, int exifRotation, Options options)
+            throws IOException {
+        BitmapRegionDecoder decoder = source.newRegionDecoder();
+        if (decoder == null) {
+            throw new IOException("Cannot decode image");
+        }
+        try {
+            return decodeRegion(decoder, source, cropRect, exifRotation, options);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    // As above with a decoder owned by the caller, which may share it between crops of one source
+    Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect cropRect, int exifRotation, Options options)
+            throws IOException {
+        return decodeRegion(decoder, null, cropRect, exifRotation, options);
+    }
+
+    // The source, if there is one, opens more decoders for a parallel decode
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Source source, Rect cropRect, int exifRotation,
+                                Options options) throws IOException {
+        int[] outSize = CropGeometry.outputSize(cropRect.width(), cropRect.height(),
+                options.maxWidth, options.maxHeight);
+        int outWidth = outSize[0];
+        int outHeight = outSize[1];
+
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+
+        // Adjust crop area to account for image rotation
+        int[] region = { cropRect.left, cropRect.top, cropRect.right, cropRect.bottom };
+        CropGeometry.unrotate(region, exifRotation, width, height);
+        Rect rect = new Rect(region[0], region[1], region[2], region[3]);
+
+        // Output size is in display orientation, the region is in source orientation
+        if (CropGeometry.isOrientationChanged(exifRotation)) {
+            int tmp = outWidth;
+            outWidth = outHeight;
+            outHeight = tmp;
+        }
+
+        // Shrink the output, where allowed, when even the output does not fit in memory
+        float scale = MemoryGovernor.outputScale((long) outWidth * outHeight * BYTES_PER_PIXEL);
+        if (scale < 1f) {
+            if (!options.reducedSize) {
+                throw new OutputTooLargeException("Output of " + outWidth + "x" + outHeight + " does not fit in the free heap");
+            }
+            outWidth = Math.max(1, (int) (outWidth * scale));
+            outHeight = Math.max(1, (int) (outHeight * scale));
+            CropMetrics.recordReducedOutput();
+        }
+
+        int sampleSize = CropGeometry.regionSampleSize(rect.width(), rect.height(), outWidth, outHeight);
+        long decodedBytes = (long) (rect.width() / sampleSize) * (rect.height() / sampleSize) * BYTES_PER_PIXEL;
+        long outputBytes = (long) outWidth * outHeight * BYTES_PER_PIXEL;
+        int strips = MemoryGovernor.regionStrips(decodedBytes, outputBytes);
+        int threads = 1;
+        int parallelStrips = Math.max(strips, MemoryGovernor.MAX_DECODE_THREADS * STRIPS_PER_THREAD);
+        if (source != null && options.parallelDecode) {
+            threads = MemoryGovernor.regionThreads((long) rect.width() * rect.height(),
+                    decodedBytes / parallelStrips, outputBytes);
+        }
+        try {
+            if (threads > 1) {
+                try {
+                    return decodeParallel(decoder, source, rect, sampleSize, outWidth, outHeight,
+                            parallelStrips, threads);
+                } catch (OutOfMemoryError e) {
+                    Log.e("OOM decoding region in parallel, retrying on one thread", e);
+                    return decodeStrips(decoder, rect, sampleSize, outWidth, outHeight,
+                            Math.max(strips, RETRY_STRIPS));
+                }
+            }
+            if (strips > 1) {
+                return decodeStrips(decoder, rect, sampleSize, outWidth, outHeight, strips);
+            }
+            try {
+                return decodeWhole(decoder, rect, sampleSize, outWidth, outHeight);
+            } catch (OutOfMemoryError e) {
+                // Other allocations raced us for the heap, retry with a smaller peak
+                Log.e("OOM decoding region in one go, retrying in strips", e);
+                return decodeStrips(decoder, rect, sampleSize, outWidth, outHeight, RETRY_STRIPS);
+            }
+        } catch (IllegalArgumentException e) {
+            // Rethrow with some extra information
+            throw new IllegalArgumentException("Rectangle " + rect + " is outside of the image ("
+                    + width + "," + height + "," + exifRotation + ")", e);
+        }
+    }
+
+    private Bitmap decodeWhole(BitmapRegionDecoder decoder, Rect rect, int sampleSize, int outWidth, int outHeight) {
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = sampleSize;
+        Bitmap croppedImage = decoder.decodeRegion(rect, decodeOptions);
+        if (croppedImage != null
+                && (croppedImage.getWidth() > outWidth || croppedImage.getHeight() > outHeight)) {
+            Bitmap scaled = Bitmap.createScaledBitmap(croppedImage, outWidth, outHeight, true);
+            if (scaled != croppedImage) {
+                croppedImage.recycle();
+            }
+            croppedImage = scaled;
+        }
+        return croppedImage;
+    }
+
+    // Decodes horizontal strips one at a time and draws them scaled into the output bitmap, so at
+    // most one strip is held next to the output
+    private Bitmap decodeStrips(BitmapRegionDecoder decoder, Rect rect, int sampleSize,
+                                int outWidth, int outHeight, int strips) {
+        CropMetrics.recordTiledDecode();
+        Bitmap output = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(output);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        // Strip edges fall on multiples of the sample size so that subsampling lines up between strips
+        int stripHeight = (rect.height() + strips - 1) / strips;
+        stripHeight = Math.max(sampleSize, (stripHeight + sampleSize - 1) / sampleSize * sampleSize);
+        float scaleY = (float) outHeight / rect.height();
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = sampleSize;
+        Rect strip = new Rect();
+        RectF dst = new RectF();
+        for (int top = rect.top; top < rect.bottom; top += stripHeight) {
+            strip.set(rect.left, top, rect.right, Math.min(rect.bottom, top + stripHeight));
+            Bitmap decoded = decoder.decodeRegion(strip, decodeOptions);
+            if (decoded == null) {
+                output.recycle();
+                return null;
+            }
+            dst.set(0, (strip.top - rect.top) * scaleY, outWidth, (strip.bottom - rect.top) * scaleY);
+            canvas.drawBitmap(decoded, null, dst, paint);
+            decoded.recycle();
+        }
+        return output;
+    }
+
+    // Decodes strips on several threads. BitmapRegionDecoder decodes one region at a time, so
+    // every helper opens a decoder of its own. The calling thread takes strips too, which keeps
+    // the decode going when the pool is busy, e.g. when this already runs on one of its threads.
+    private Bitmap decodeParallel(BitmapRegionDecoder decoder, final Source source, Rect rect, int sampleSize,
+                                  int outWidth, int outHeight, int strips, int threads) {
+        CropMetrics.recordTiledDecode();
+        final ParallelDecode decode = new ParallelDecode(rect, sampleSize, outWidth, outHeight, strips);
+        for (int i = 1; i < threads; i++) {
+            CropExecutor.submit(CropMetrics.JOB_DECODE_STRIPS, CropExecutor.Priority.UI, new Runnable() {
+                public void run() {
+                    if (decode.isTaken()) {
+                        return;
+                    }
+                    BitmapRegionDecoder own = null;
+                    try {
+                        own = source.newRegionDecoder();
+                        if (own != null) {
+                            decode.run(own);
+                        }
+                    } catch (IOException e) {
+                        // The strips are left to the other threads
+                        Log.e("Cannot open decoder for parallel decode: " + e.getMessage(), e);
+                    } catch (OutOfMemoryError e) {
+                        Log.e("OOM opening decoder for parallel decode: " + e.getMessage(), e);
+                    } finally {
+                        if (own != null) {
+                            own.recycle();
+                        }
+                    }
+                }
+            });
+        }
+        decode.run(decoder);
+        return decode.await();
+    }
+
+    private static class ParallelDecode {
+
+        private final Rect rect;
+        private final int sampleSize;
+        private final int outWidth;
+        private final int stripHeight;
+        private final int count;
+        private final float scaleY;
+        private final Bitmap output;
+        private final Canvas canvas;
+        private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private volatile boolean failed;
+        // Rethrown on the calling thread
+        private volatile Throwable error;
+
+        ParallelDecode(Rect rect, int sampleSize, int outWidth, int outHeight, int strips) {
+            this.rect = rect;
+            this.sampleSize = sampleSize;
+            this.outWidth = outWidth;
+            // Strip edges fall on multiples of the sample size, as in decodeStrips
+            int height = (rect.height() + strips - 1) / strips;
+            stripHeight = Math.max(sampleSize, (height + sampleSize - 1) / sampleSize * sampleSize);
+            count = (rect.height() + stripHeight - 1) / stripHeight;
+            scaleY = (float) outHeight / rect.height();
+            output = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(output);
+            done = new CountDownLatch(count);
+        }
+
+        boolean isTaken() {
+            return next.get() >= count;
+        }
+
+        // Takes strips until there are none left
+        void run(BitmapRegionDecoder decoder) {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+                try {
+                    if (!failed) {
+                        decodeStrip(decoder, i);
+                    }
+                } catch (OutOfMemoryError e) {
+                    error = e;
+                    failed = true;
+                } catch (RuntimeException e) {
+                    error = e;
+                    failed = true;
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        private void decodeStrip(BitmapRegionDecoder decoder, int i) {
+            int top = rect.top + i * stripHeight;
+            Rect strip = new Rect(rect.left, top, rect.right, Math.min(rect.bottom, top + stripHeight));
+            // Options are written to by the decode, so each strip has its own
+            BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+            decodeOptions.inSampleSize = sampleSize;
+            Bitmap decoded = decoder.decodeRegion(strip, decodeOptions);
+            if (decoded == null) {
+                failed = true;
+                return;
+            }
+            RectF dst = new RectF(0, (strip.top - rect.top) * scaleY, outWidth, (strip.bottom - rect.top) * scaleY);
+            synchronized (canvas) {
+                canvas.drawBitmap(decoded, null, dst, paint);
+            }
+            decoded.recycle();
+        }
+
+        // Waits for the strips other threads are still decoding
+        Bitmap await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // Stop taking strips, but the output cannot go before the running ones are drawn
+                    failed = true;
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (!failed) {
+                return output;
+            }
+            output.recycle();
+            if (error instanceof OutOfMemoryError) {
+                throw (OutOfMemoryError) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decode a region once and derive several output sizes from it. The region is decoded for
+     * the largest rendition, each smaller one is scaled down from the next larger in halving
+     * steps, which keeps small renditions sharp without decoding again.
+     *
+     * @param cropRect     Crop area in full resolution coordinates of the displayed (rotated) image
+     * @param exifRotation Rotation of the source
+     * @param renditions   Output constraints, one per rendition
+     * @return Bitmaps in source orientation in the order of renditions, to be recycled by the caller
+     */
+    public Bitmap[] decodeRenditions(Source source, Rect cropRect, int exifRotation, Options[] renditions)
+            throws IOException {
+        final int[][] sizes = new int[renditions.length][];
+        Integer[] order = new Integer[renditions.length];
+        for (int i = 0; i < renditions.length; i++) {
+            sizes[i] = CropGeometry.outputSize(cropRect.width(), cropRect.height(),
+                    renditions[i].maxWidth, renditions[i].maxHeight);
+            if (CropGeometry.isOrientationChanged(exifRotation)) {
+                sizes[i] = new int[] { sizes[i][1], sizes[i][0] };
+            }
+            order[i] = i;
+        }
+        // Largest first
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long areaA = (long) sizes[a][0] * sizes[a][1];
+                long areaB = (long) sizes[b][0] * sizes[b][1];
+                return areaA < areaB ? 1 : (areaA == areaB ? 0 : -1);
+            }
+        });
+
+        BitmapRegionDecoder decoder = source.newRegionDecoder();
+        if (decoder == null) {
+            throw new IOException("Cannot decode image");
+        }
+        Bitmap[] bitmaps = new Bitmap[renditions.length];
+        boolean decoded = false;
+        try {
+            Bitmap previous = decodeRegion(decoder, source, cropRect, exifRotation, renditions[order[0]]);
+            if (previous == null) {
+                throw new IOException("Cannot decode image region");
+            }
+            bitmaps[order[0]] = previous;
+            for (int i = 1; i < order.length; i++) {
+                int[] size = sizes[order[i]];
+                previous = downscale(previous, size[0], size[1]);
+                bitmaps[order[i]] = previous;
+            }
+            decoded = true;
+            return bitmaps;
+        } finally {
+            decoder.recycle();
+            if (!decoded) {
+                for (Bitmap bitmap : bitmaps) {
+                    if (bitmap != null) {
+                        bitmap.recycle();
+                    }
+                }
+            }
+        }
+    }
+
+    // New bitmap of at most the given size: halved while twice as large, then scaled exactly
+    private static Bitmap downscale(Bitmap bitmap, int width, int height) {
+        // The decode may have come out smaller than asked for when memory was short
+        float fit = Math.min(1F, Math.min((float) bitmap.getWidth() / width, (float) bitmap.getHeight() / height));
+        width = Math.max(1, Math.round(width * fit));
+        height = Math.max(1, Math.round(height * fit));
+
+        Bitmap current = bitmap;
+        while (current.getWidth() >= width * 2 && current.getHeight() >= height * 2) {
+            Bitmap half = Bitmap.createScaledBitmap(current, current.getWidth() / 2, current.getHeight() / 2, true);
+            if (current != bitmap) {
+                current.recycle();
+            }
+            current = half;
+        }
+        if (current == bitmap || current.getWidth() != width || current.getHeight() != height) {
+            Bitmap exact = Bitmap.createScaledBitmap(current, width, height, true);
+            if (exact == bitmap) {
+                // Same size as the larger rendition, which is recycled separately
+                exact = bitmap.copy(bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888, false);
+            }
+            if (current != bitmap && current != exact) {
+                current.recycle();
+            }
+            current = exact;
+        }
+        return current;
+    }
+
+    /**
+     * Encode a cropped bitmap. JPEG output carries the rotation in its Exif orientation, other
+     * formats get the rotation applied to their pixels.
+     *
+     * @param bitmap       Cropped bitmap in source orientation
+     * @param exifRotation Rotation of the source
+     */
+    public void encode(Bitmap bitmap, int exifRotation, Options options, OutputStream out) throws IOException {
+        encodeOriented(bitmap, Exif.toOrientation(exifRotation), options, out);
+    }
+
+    public byte[] encode(Bitmap bitmap, int exifRotation, Options options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(bitmap, exifRotation, options, out);
+        return out.toByteArray();
+    }
+
+    // As encode, with the orientation tag of the source, which also keeps mirrored orientations
+    void encodeOriented(Bitmap bitmap, int exifOrientation, Options options, OutputStream out) throws IOException {
+        int exifRotation = Exif.toRotation(exifOrientation);
+        Bitmap encoded = bitmap;
+        if (options.format != Crop.Format.JPEG && exifRotation != 0) {
+            Matrix matrix = new Matrix();
+            matrix.setRotate(exifRotation);
+            encoded = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        }
+        ImageEncoder encoder = ImageEncoder.obtain();
+        try {
+            int maxBytes = options.maxBytes;
+            if (maxBytes > 0 && options.format == Crop.Format.JPEG) {
+                // Leave room in the budget for the Exif segment added below
+                maxBytes = Math.max(1, maxBytes - Exif.app1Size(exifOrientation));
+            }
+            byte[] data = encoder.encode(encoded, options.format, options.quality, maxBytes);
+            if (options.format == Crop.Format.JPEG) {
+                Exif.writeJpeg(out, data, exifOrientation);
+            } else {
+                out.write(data);
+            }
+        } finally {
+            encoder.recycle();
+            if (encoded != bitmap) {
+                encoded.recycle();
+            }
+        }
+    }
+
+    byte[] encodeOriented(Bitmap bitmap, int exifOrientation, Options options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encodeOriented(bitmap, exifOrientation, options, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Crop a JPEG source by copying its coded blocks rather than decoding and encoding it again,
+     * which keeps the quality of the source. Only possible for JPEG output at full size without a
+     * file size budget, and for crops starting on the 8 or 16 pixel block grid of the source.
+     *
+     * @param cropRect Crop area in full resolution coordinates of the displayed (rotated) image
+     * @return Encoded crop with the rotation in its Exif orientation, null if the crop has to go
+     *         through pixels
+     */
+    public byte[] cropLossless(Source source, Rect cropRect, int exifRotation, Options options) throws IOException {
+        if (!mayCropLossless(cropRect, options)) {
+            return null;
+        }
+        byte[] jpeg = readJpeg(source, MemoryGovernor.regionBudget());
+        JpegCropper cropper = jpeg != null ? JpegCropper.parse(jpeg) : null;
+        if (cropper == null) {
+            return null;
+        }
+        int[] region = { cropRect.left, cropRect.top, cropRect.right, cropRect.bottom };
+        CropGeometry.unrotate(region, exifRotation, cropper.getWidth(), cropper.getHeight());
+        // Growing the crop onto the block grid would change its aspect and add pixels the user left
+        // out, so only crops already on the grid are copied
+        if (!cropper.canCrop(region[0], region[1], region[2], region[3])) {
+            return null;
+        }
+        // The source's own tag keeps mirrored orientations, unless the caller rotates differently
+        int exifOrientation = Exif.parseOrientation(Exif.readApp1(new ByteArrayInputStream(jpeg)));
+        if (Exif.toRotation(exifOrientation) != exifRotation) {
+            exifOrientation = Exif.toOrientation(exifRotation);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Exif.writeJpeg(out, cropper.crop(region[0], region[1], region[2], region[3]), exifOrientation);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return Whether {@link #cropLossless} may apply, judged without reading the source
+     */
+    static boolean mayCropLossless(Rect cropRect, Options options) {
+        if (options.format != Crop.Format.JPEG || options.maxBytes > 0) {
+            return false;
+        }
+        int[] outSize = CropGeometry.outputSize(cropRect.width(), cropRect.height(),
+                options.maxWidth, options.maxHeight);
+        return outSize[0] == cropRect.width() && outSize[1] == cropRect.height();
+    }
+
+    // Whole source if it is a JPEG of at most maxBytes, null otherwise
+    private static byte[] readJpeg(Source source, long maxBytes) throws IOException {
+        InputStream in = source.open();
+        try {
+            if (in.read() != 0xFF || in.read() != 0xD8) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0xFF);
+            out.write(0xD8);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                if (out.size() > maxBytes) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            CropUtil.closeSilently(in);
+        }
+    }
+
+    /**
+     * Crop the source and write the encoded result
+     *
+     * @param cropRect Crop area in full resolution coordinates of the displayed (rotated) image
+     */
+    public void crop(Source source, Rect cropRect, Options options, OutputStream out) throws IOException {
+        int exifOrientation = readExifOrientation(source);
+        int exifRotation = Exif.toRotation(exifOrientation);
+        byte[] lossless = cropLossless(source, cropRect, exifRotation, options);
+        if (lossless != null) {
+            out.write(lossless);
+            return;
+        }
+        Bitmap cropped = decodeRegion(source, cropRect, exifRotation, options);
+        if (cropped == null) {
+            throw new IOException("Cannot decode image region");
+        }
+        try {
+            encodeOriented(cropped, exifOrientation, options, out);
+        } finally {
+            cropped.recycle();
+        }
+    }
+
+    /**
+     * Crop the source and return the encoded result
+     *
+     * @param cropRect Crop area in full resolution coordinates of the displayed (rotated) image
+     */
+    public byte[] crop(Source source, Rect cropRect, Options options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        crop(source, cropRect, options, out);
+        return out.toByteArray();
+    }
+
+}
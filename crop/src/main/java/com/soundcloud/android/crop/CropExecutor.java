@@ -0,0 +1,123 @@
+package com.soundcloud.android.crop;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Shared, bounded worker pool for crop jobs. Jobs are ordered by priority and then by submission
+ * order, so work the user is waiting on always runs ahead of maintenance tasks.
+ */
+class CropExecutor {
+
+    enum Priority {
+        // Declaration order is queue order
+        UI, BACKGROUND
+    }
+
+    private static final int POOL_SIZE =
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static ThreadPoolExecutor executor;
+
+    static Future<?> submit(String tag, Priority priority, Runnable task) {
+        Job<Void> job = new Job<Void>(tag, priority, task, null);
+        get().execute(job);
+        return job;
+    }
+
+    static <T> Future<T> submit(String tag, Priority priority, Callable<T> task) {
+        Job<T> job = new Job<T>(tag, priority, task);
+        get().execute(job);
+        return job;
+    }
+
+    /**
+     * Take a job that has not started yet off the queue, so that a caller that would otherwise
+     * wait for it on a worker can run the work itself
+     *
+     * @return True if the job was cancelled before it started
+     */
+    static boolean dequeue(Future<?> job) {
+        return job instanceof Job && get().remove((Job<?>) job) && job.cancel(false);
+    }
+
+    private static synchronized ThreadPoolExecutor get() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new WorkerFactory("android-crop-"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+
+        private final String tag;
+        private final Priority priority;
+        private final long order = sequence.getAndIncrement();
+        private final long enqueuedAt = SystemClock.elapsedRealtime();
+
+        Job(String tag, Priority priority, Callable<T> task) {
+            super(task);
+            this.tag = tag;
+            this.priority = priority;
+        }
+
+        Job(String tag, Priority priority, Runnable task, T result) {
+            super(task, result);
+            this.tag = tag;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            long startedAt = SystemClock.elapsedRealtime();
+            try {
+                super.run();
+            } finally {
+                CropMetrics.recordJob(tag, startedAt - enqueuedAt, SystemClock.elapsedRealtime() - startedAt);
+            }
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) return byPriority;
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    static class WorkerFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND
+                            + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+                    r.run();
+                }
+            }, namePrefix + count.incrementAndGet());
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.soundcloud.android.crop;
+
+/*
+ * Size and coordinate math shared by the crop pipeline. Free of Android types so it can be
+ * unit tested on the JVM. Rectangles are int[] { left, top, right, bottom }.
+ */
+class CropGeometry {
+
+    private CropGeometry() {}
+
+    /**
+     * Smallest power of two sample size that brings a (width x height) image within maxSize
+     */
+    static int previewSampleSize(int width, int height, int maxSize) {
+        int sampleSize = 1;
+        while (height / sampleSize > maxSize || width / sampleSize > maxSize) {
+            sampleSize = sampleSize << 1;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Largest power of two sample size that still decodes a (width x height) region to at least
+     * (reqWidth x reqHeight), so the remaining resize is a downscale of at most 2x.
+     */
+    static int regionSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) return sampleSize;
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize = sampleSize << 1;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return { width, height } of a (width x height) crop scaled down to fit maxWidth x maxHeight,
+     *         keeping its aspect ratio. Unchanged if no limit is set or it already fits.
+     */
+    static int[] outputSize(int width, int height, int maxWidth, int maxHeight) {
+        int outWidth = width;
+        int outHeight = height;
+        if (maxWidth > 0 && maxHeight > 0 && (width > maxWidth || height > maxHeight)) {
+            float ratio = (float) width / (float) height;
+            if ((float) maxWidth / (float) maxHeight > ratio) {
+                outHeight = maxHeight;
+                outWidth = (int) ((float) maxHeight * ratio + .5f);
+            } else {
+                outWidth = maxWidth;
+                outHeight = (int) ((float) maxWidth / ratio + .5f);
+            }
+        }
+        return new int[] { outWidth, outHeight };
+    }
+
+    static boolean isOrientationChanged(int rotation) {
+        return (rotation / 90) % 2 != 0;
+    }
+
+    /**
+     * Maps a rect from the displayed (rotated) image back to the coordinates of the source image
+     * as stored, in place
+     *
+     * @param rect         Rect in display orientation
+     * @param rotation     Exif rotation of the source, multiple of 90
+     * @param sourceWidth  Width of the source as stored
+     * @param sourceHeight Height of the source as stored
+     */
+    static void unrotate(int[] rect, int rotation, int sourceWidth, int sourceHeight) {
+        int left = rect[0], top = rect[1], right = rect[2], bottom = rect[3];
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                rect[0] = top;
+                rect[1] = sourceHeight - right;
+                rect[2] = bottom;
+                rect[3] = sourceHeight - left;
+                break;
+            case 180:
+                rect[0] = sourceWidth - right;
+                rect[1] = sourceHeight - bottom;
+                rect[2] = sourceWidth - left;
+                rect[3] = sourceHeight - top;
+                break;
+            case 270:
+                rect[0] = sourceWidth - bottom;
+                rect[1] = left;
+                rect[2] = sourceWidth - top;
+                rect[3] = right;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Centered crop about 4/5 of the shorter side, narrowed to the aspect ratio if there is one
+     *
+     * @return Rect as { left, top, right, bottom }
+     */
+    static int[] defaultCropRect(int width, int height, int aspectX, int aspectY) {
+        int cropWidth = Math.min(width, height) * 4 / 5;
+        @SuppressWarnings("SuspiciousNameCombination")
+        int cropHeight = cropWidth;
+
+        if (aspectX != 0 && aspectY != 0) {
+            if (aspectX > aspectY) {
+                cropHeight = cropWidth * aspectY / aspectX;
+            } else {
+                cropWidth = cropHeight * aspectX / aspectY;
+            }
+        }
+
+        int x = (width - cropWidth) / 2;
+        int y = (height - cropHeight) / 2;
+        return new int[] { x, y, x + cropWidth, y + cropHeight };
+    }
+
+}
@@ -17,15 +17,12 @@
 package com.soundcloud.android.crop;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
-import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
-import android.opengl.GLES10;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -35,34 +32,47 @@ import android.view.Window;
 import android.view.WindowManager;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /*
  * Modified from original in AOSP.
  */
-public class CropImageActivity extends MonitoredActivity {
-
-    private static final int SIZE_DEFAULT = 2048;
-    private static final int SIZE_LIMIT = 4096;
+public class CropImageActivity extends MonitoredActivity implements CropImageView.Host, SpeculativeEncoder.Host {
 
     private final Handler handler = new Handler();
+    private final SpeculativeEncoder speculativeEncoder = new SpeculativeEncoder(this, handler, this);
 
     private int aspectX;
     private int aspectY;
+    private boolean detectSubject;
+    private boolean inMemoryResult;
+    private CropEngine.Options[] renditionOptions;
+    private Uri[] renditionOutputs;
+    private Future<?> subjectDetection;
+    private Future<?> inputLoad;
 
     // Output image
-    private int maxX;
-    private int maxY;
+    private final CropEngine engine = new CropEngine();
+    private final CropEngine.Options outputOptions = new CropEngine.Options();
     private int exifRotation;
+    private int exifOrientation = Exif.ORIENTATION_NORMAL;
 
     private Uri sourceUri;
+    private CropEngine.Source source;
+    private CropSession session;
     private Uri saveUri;
 
     private boolean isSaving;
 
-    private int sampleSize;
+    private int sampleSize; // 0 while a thumbnail is shown
+    private boolean saveWhenLoaded;
+    private RectF restoredCropRect;
+    private boolean isRetained;
     private RotateBitmap rotateBitmap;
     private CropImageView imageView;
     private HighlightView cropView;
@@ -74,11 +84,48 @@ public class CropImageActivity extends MonitoredActivity {
         setupViews();
 
         loadInput();
-        if (rotateBitmap == null) {
+        if (source == null) {
             finish();
             return;
         }
-        startCrop();
+        RetainedState state = (RetainedState) getLastNonConfigurationInstance();
+        if (state != null && !state.bitmap.isRecycled()) {
+            // Recreated for a configuration change, only the layout needs redoing
+            sampleSize = state.sampleSize;
+            exifRotation = state.exifRotation;
+            exifOrientation = state.exifOrientation;
+            rotateBitmap = new RotateBitmap(state.bitmap, exifRotation);
+            restoredCropRect = state.cropRect;
+            speculativeEncoder.bind(session, exifRotation, exifOrientation, outputOptions);
+            startCrop();
+        } else {
+            loadPreview();
+        }
+    }
+
+    // Decoded preview and crop handed from an instance destroyed for a configuration change to its successor
+    private static class RetainedState {
+        Bitmap bitmap;
+        int sampleSize;
+        int exifRotation;
+        int exifOrientation;
+        RectF cropRect;
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        // Thumbnails and in-flight loads are cheaper to redo than to hand over
+        if (cropView == null || sampleSize == 0 || isSaving) {
+            return null;
+        }
+        RetainedState state = new RetainedState();
+        state.bitmap = rotateBitmap.getBitmap();
+        state.sampleSize = sampleSize;
+        state.exifRotation = exifRotation;
+        state.exifOrientation = exifOrientation;
+        state.cropRect = new RectF(cropView.cropRect);
+        isRetained = true;
+        return state;
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -93,17 +140,19 @@ public class CropImageActivity extends MonitoredActivity {
         setContentView(R.layout.crop__activity_crop);
 
         imageView = (CropImageView) findViewById(R.id.crop_image);
-        imageView.context = this;
+        imageView.host = this;
         imageView.setRecycler(new ImageViewTouchBase.Recycler() {
             @Override
             public void recycle(Bitmap b) {
                 b.recycle();
-                System.gc();
             }
         });
 
         findViewById(R.id.btn_cancel).setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
+                if (isSaving) {
+                    return;
+                }
                 setResult(RESULT_CANCELED);
                 finish();
             }
@@ -123,95 +172,136 @@ public class CropImageActivity extends MonitoredActivity {
         if (extras != null) {
             aspectX = extras.getInt(Crop.Extra.ASPECT_X);
             aspectY = extras.getInt(Crop.Extra.ASPECT_Y);
-            maxX = extras.getInt(Crop.Extra.MAX_X);
-            maxY = extras.getInt(Crop.Extra.MAX_Y);
+            detectSubject = extras.getBoolean(Crop.Extra.DETECT_SUBJECT);
+            inMemoryResult = extras.getBoolean(Crop.Extra.IN_MEMORY_RESULT);
+            outputOptions.withMaxSize(extras.getInt(Crop.Extra.MAX_X), extras.getInt(Crop.Extra.MAX_Y));
+            String format = extras.getString(Crop.Extra.OUTPUT_FORMAT);
+            if (format != null) {
+                outputOptions.withOutputFormat(Crop.Format.valueOf(format));
+            }
+            outputOptions.withQuality(extras.getInt(Crop.Extra.OUTPUT_QUALITY, ImageEncoder.DEFAULT_QUALITY));
+            outputOptions.withMaxFileSize(extras.getInt(Crop.Extra.OUTPUT_MAX_BYTES));
             saveUri = extras.getParcelable(MediaStore.EXTRA_OUTPUT);
+            readRenditions(extras);
         }
 
         sourceUri = intent.getData();
         if (sourceUri != null) {
-            exifRotation = CropUtil.getExifRotation(CropUtil.getFromMediaUri(this, getContentResolver(), sourceUri));
-
-            InputStream is = null;
-            try {
-                sampleSize = calculateBitmapSampleSize(sourceUri);
-                is = getContentResolver().openInputStream(sourceUri);
-                BitmapFactory.Options option = new BitmapFactory.Options();
-                option.inSampleSize = sampleSize;
-                rotateBitmap = new RotateBitmap(BitmapFactory.decodeStream(is, null, option), exifRotation);
-            } catch (IOException e) {
-                Log.e("Error reading image: " + e.getMessage(), e);
-                setResultException(e);
-            } catch (OutOfMemoryError e) {
-                Log.e("OOM reading image: " + e.getMessage(), e);
-                setResultException(e);
-            } finally {
-                CropUtil.closeSilently(is);
-            }
+            source = CropEngine.Source.of(this, sourceUri);
+            session = new CropSession(handler, source);
         }
     }
 
-    private int calculateBitmapSampleSize(Uri bitmapUri) throws IOException {
-        InputStream is = null;
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        try {
-            is = getContentResolver().openInputStream(bitmapUri);
-            BitmapFactory.decodeStream(is, null, options); // Just get image size
-        } finally {
-            CropUtil.closeSilently(is);
+    private void readRenditions(Bundle extras) {
+        int[] sizes = extras.getIntArray(Crop.Extra.RENDITION_SIZES);
+        if (sizes == null) {
+            return;
         }
+        String[] formats = extras.getStringArray(Crop.Extra.RENDITION_FORMATS);
+        int[] qualities = extras.getIntArray(Crop.Extra.RENDITION_QUALITIES);
+        ArrayList<Uri> outputs = extras.getParcelableArrayList(Crop.Extra.RENDITION_OUTPUTS);
+        renditionOptions = new CropEngine.Options[sizes.length];
+        renditionOutputs = new Uri[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            renditionOptions[i] = new CropEngine.Options()
+                    .withMaxSize(sizes[i], sizes[i])
+                    .withOutputFormat(Crop.Format.valueOf(formats[i]))
+                    .withQuality(qualities[i]);
+            renditionOutputs[i] = outputs.get(i);
+        }
+    }
+
+    // The first frame shows right away. A prefetched preview is used as soon as it is done,
+    // otherwise cropping starts on a thumbnail where the source has one and continues on the
+    // preview once it is decoded.
+    private void loadPreview() {
+        inputLoad = session.load(this, true, new CropSession.LoadCallback() {
+            public void onThumbnailLoaded(CropEngine.Preview thumbnail) {
+                CropImageActivity.this.onThumbnailLoaded(thumbnail);
+            }
 
-        int maxSize = getMaxImageSize();
-        int sampleSize = 1;
-        while (options.outHeight / sampleSize > maxSize || options.outWidth / sampleSize > maxSize) {
-            sampleSize = sampleSize << 1;
+            public void onPreviewLoaded(CropEngine.Preview preview, Throwable error) {
+                CropImageActivity.this.onPreviewLoaded(preview, error);
+            }
+        });
+    }
+
+    private void onThumbnailLoaded(CropEngine.Preview thumbnail) {
+        if (inputLoad == null) {
+            // Destroyed while decoding
+            thumbnail.getBitmap().recycle();
+            return;
         }
-        return sampleSize;
+        sampleSize = thumbnail.getSampleSize();
+        exifRotation = thumbnail.getExifRotation();
+        exifOrientation = thumbnail.getExifOrientation();
+        rotateBitmap = new RotateBitmap(thumbnail.getBitmap(), exifRotation);
+        startCrop();
     }
 
-    private int getMaxImageSize() {
-        int textureLimit = getMaxTextureSize();
-        if (textureLimit == 0) {
-            return SIZE_DEFAULT;
+    private void onPreviewLoaded(CropEngine.Preview preview, Throwable error) {
+        if (inputLoad == null) {
+            // Destroyed while decoding
+            if (preview != null) {
+                preview.getBitmap().recycle();
+            }
+            return;
+        }
+        inputLoad = null;
+        if (preview == null) {
+            setResultException(error);
+            finish();
+            return;
+        }
+        RotateBitmap thumbnail = rotateBitmap;
+        sampleSize = preview.getSampleSize();
+        exifRotation = preview.getExifRotation();
+        exifOrientation = preview.getExifOrientation();
+        rotateBitmap = new RotateBitmap(preview.getBitmap(), exifRotation);
+        speculativeEncoder.bind(session, exifRotation, exifOrientation, outputOptions);
+        if (thumbnail == null) {
+            startCrop();
+        } else if (cropView == null) {
+            // The thumbnail was never laid out, start over with the preview
+            if (thumbnail.getBitmap() != imageView.bitmapDisplayed.getBitmap()) {
+                thumbnail.recycle();
+            }
+            startCrop();
         } else {
-            return Math.min(textureLimit, SIZE_LIMIT);
+            swapThumbnail(thumbnail);
         }
     }
 
-    private int getMaxTextureSize() {
-        // The OpenGL texture size is the maximum size that can be drawn in an ImageView
-        int[] maxSize = new int[1];
-        GLES10.glGetIntegerv(GLES10.GL_MAX_TEXTURE_SIZE, maxSize, 0);
-        return maxSize[0];
+    // Replaces the thumbnail in place, so zoom, pan and the crop stay where the user left them.
+    // The image view recycles the thumbnail.
+    private void swapThumbnail(RotateBitmap thumbnail) {
+        final float scale = (float) rotateBitmap.getWidth() / thumbnail.getWidth();
+        imageView.setImageRotateBitmapResetBase(rotateBitmap, false, new Runnable() {
+            public void run() {
+                cropView.rescale(scale, imageView.getUnrotatedMatrix());
+                if (detectSubject && !cropView.isUserModified()) {
+                    new Cropper().detectSubject(cropView);
+                }
+                speculativeEncoder.restart();
+                if (saveWhenLoaded) {
+                    onSaveClicked();
+                }
+            }
+        });
     }
 
     private void startCrop() {
         if (isFinishing()) {
             return;
         }
-        imageView.setImageRotateBitmapResetBase(rotateBitmap, true);
-        CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__wait),
-                new Runnable() {
-                    public void run() {
-                        final CountDownLatch latch = new CountDownLatch(1);
-                        handler.post(new Runnable() {
-                            public void run() {
-                                if (imageView.getScale() == 1F) {
-                                    imageView.center();
-                                }
-                                latch.countDown();
-                            }
-                        });
-                        try {
-                            latch.await();
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                        new Cropper().crop();
-                    }
-                }, handler
-        );
+        imageView.setImageRotateBitmapResetBase(rotateBitmap, true, new Runnable() {
+            public void run() {
+                if (imageView.getScale() == 1F) {
+                    imageView.center();
+                }
+                new Cropper().crop();
+            }
+        });
     }
 
     private class Cropper {
@@ -221,44 +311,60 @@ public class CropImageActivity extends MonitoredActivity {
                 return;
             }
 
-            HighlightView hv = new HighlightView(imageView);
-            final int width = rotateBitmap.getWidth();
-            final int height = rotateBitmap.getHeight();
-
-            Rect imageRect = new Rect(0, 0, width, height);
-
-            // Make the default size about 4/5 of the width or height
-            int cropWidth = Math.min(width, height) * 4 / 5;
-            @SuppressWarnings("SuspiciousNameCombination")
-            int cropHeight = cropWidth;
-
-            if (aspectX != 0 && aspectY != 0) {
-                if (aspectX > aspectY) {
-                    cropHeight = cropWidth * aspectY / aspectX;
-                } else {
-                    cropWidth = cropHeight * aspectX / aspectY;
-                }
+            RectF cropRect = restoredCropRect;
+            if (cropRect == null) {
+                int[] rect = CropGeometry.defaultCropRect(rotateBitmap.getWidth(), rotateBitmap.getHeight(),
+                        aspectX, aspectY);
+                cropRect = new RectF(rect[0], rect[1], rect[2], rect[3]);
             }
-
-            int x = (width - cropWidth) / 2;
-            int y = (height - cropHeight) / 2;
-
-            RectF cropRect = new RectF(x, y, x + cropWidth, y + cropHeight);
-            hv.setup(imageView.getUnrotatedMatrix(), imageRect, cropRect, aspectX != 0 && aspectY != 0);
-            imageView.add(hv);
+            imageView.addHighlight(rotateBitmap, cropRect, aspectX != 0 && aspectY != 0);
         }
 
         public void crop() {
-            handler.post(new Runnable() {
-                public void run() {
-                    makeDefault();
-                    imageView.invalidate();
-                    if (imageView.highlightViews.size() == 1) {
-                        cropView = imageView.highlightViews.get(0);
-                        cropView.setFocus(true);
-                    }
+            makeDefault();
+            imageView.invalidate();
+            if (imageView.highlightViews.size() == 1) {
+                cropView = imageView.highlightViews.get(0);
+                cropView.setFocus(true);
+                // Subjects are looked for in the preview, a thumbnail is swapped out too soon
+                if (detectSubject && sampleSize != 0 && restoredCropRect == null) {
+                    detectSubject(cropView);
                 }
-            });
+                speculativeEncoder.restart();
+            }
+        }
+
+        // Show the centered default right away, then move it onto the subject once found
+        private void detectSubject(final HighlightView hv) {
+            final Bitmap analysis = SubjectDetector.createAnalysisBitmap(rotateBitmap);
+            final float imageWidth = rotateBitmap.getWidth();
+            final float imageHeight = rotateBitmap.getHeight();
+            subjectDetection = CropExecutor.submit(CropMetrics.JOB_DETECT_SUBJECT, CropExecutor.Priority.UI,
+                    new Runnable() {
+                        public void run() {
+                            final RectF subject;
+                            try {
+                                subject = SubjectDetector.findSubject(analysis);
+                            } finally {
+                                analysis.recycle();
+                            }
+                            subject.left *= imageWidth;
+                            subject.right *= imageWidth;
+                            subject.top *= imageHeight;
+                            subject.bottom *= imageHeight;
+                            handler.post(new Runnable() {
+                                public void run() {
+                                    if (isFinishing() || isSaving || hv != cropView || hv.isUserModified()) {
+                                        return;
+                                    }
+                                    RectF crop = new RectF(hv.cropRect);
+                                    SubjectDetector.fitCrop(crop, subject, imageWidth, imageHeight);
+                                    hv.setCropRect(crop);
+                                    speculativeEncoder.restart();
+                                }
+                            });
+                        }
+                    });
         }
     }
 
@@ -266,105 +372,216 @@ public class CropImageActivity extends MonitoredActivity {
         if (cropView == null || isSaving) {
             return;
         }
+        if (sampleSize == 0) {
+            // Still showing the thumbnail, save once the preview has replaced it
+            saveWhenLoaded = true;
+            return;
+        }
         isSaving = true;
 
-        Bitmap croppedImage;
         Rect r = cropView.getScaledCropRect(sampleSize);
-        int width = r.width();
-        int height = r.height();
-
-        int outWidth = width;
-        int outHeight = height;
-        if (maxX > 0 && maxY > 0 && (width > maxX || height > maxY)) {
-            float ratio = (float) width / (float) height;
-            if ((float) maxX / (float) maxY > ratio) {
-                outHeight = maxY;
-                outWidth = (int) ((float) maxY * ratio + .5f);
-            } else {
-                outWidth = maxX;
-                outHeight = (int) ((float) maxX / ratio + .5f);
-            }
+        if (renditionOptions != null) {
+            speculativeEncoder.cancel();
+            saveRenditions(r);
+            return;
         }
-
-        try {
-            croppedImage = decodeRegionCrop(r, outWidth, outHeight);
-        } catch (IllegalArgumentException e) {
-            setResultException(e);
-            finish();
+        Future<byte[]> encoded = speculativeEncoder.take(r);
+        if (encoded != null) {
+            saveEncoded(encoded, r);
             return;
         }
-
-        if (croppedImage != null) {
-            imageView.setImageRotateBitmapResetBase(new RotateBitmap(croppedImage, exifRotation), true);
-            imageView.center();
-            imageView.highlightViews.clear();
+        if (CropEngine.mayCropLossless(r, outputOptions)) {
+            saveLossless(r);
+            return;
         }
-        saveImage(croppedImage);
+        saveDecoded(r);
     }
 
-    private void saveImage(Bitmap croppedImage) {
-        if (croppedImage != null) {
-            final Bitmap b = croppedImage;
-            CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__saving),
-                    new Runnable() {
-                        public void run() {
-                            saveOutput(b);
+    // Decodes the crop in the save job, as a large region decodes in parallel strips that the UI
+    // thread must not wait for
+    private void saveDecoded(final Rect rect) {
+        // Release memory now
+        clearImageView();
+        CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__saving), CropMetrics.JOB_SAVE,
+                new Runnable() {
+                    public void run() {
+                        final Bitmap croppedImage = decodeRegionCrop(rect);
+                        if (croppedImage == null) {
+                            finish();
+                            return;
                         }
-                    }, handler
-            );
-        } else {
-            finish();
-        }
+                        handler.post(new Runnable() {
+                            public void run() {
+                                imageView.setImageRotateBitmapResetBase(new RotateBitmap(croppedImage, exifRotation), true);
+                                imageView.center();
+                                imageView.highlightViews.clear();
+                            }
+                        });
+                        saveOutput(croppedImage);
+                    }
+                }, handler
+        );
     }
 
-    private Bitmap decodeRegionCrop(Rect rect, int outWidth, int outHeight) {
-        // Release memory now
-        clearImageView();
+    // Commits a speculative encode of the crop, waiting for it if it is already running. One still
+    // queued behind other work is encoded here instead, as a worker waiting on it could deadlock.
+    private void saveEncoded(final Future<byte[]> encoded, final Rect rect) {
+        CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__saving), CropMetrics.JOB_SAVE,
+                new Runnable() {
+                    public void run() {
+                        byte[] data;
+                        try {
+                            data = CropExecutor.dequeue(encoded) ? encodeCrop(rect) : encoded.get();
+                        } catch (Exception e) {
+                            // Encode from scratch, e.g. after an OOM that the save might not hit again
+                            Log.e("Speculative encode failed: " + e.getMessage(), e);
+                            data = encodeCrop(rect);
+                        }
+                        if (data != null) {
+                            deliverOutput(data, null);
+                        }
+                        finish();
+                    }
+                }, handler
+        );
+    }
 
-        InputStream is = null;
-        Bitmap croppedImage = null;
+    // Copies a JPEG crop without decoding it where the source allows, decodes it otherwise
+    private void saveLossless(final Rect rect) {
+        CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__saving), CropMetrics.JOB_SAVE,
+                new Runnable() {
+                    public void run() {
+                        byte[] data = encodeCrop(rect);
+                        if (data != null) {
+                            deliverOutput(data, null);
+                        }
+                        finish();
+                    }
+                }, handler
+        );
+    }
+
+    // The main output and every rendition from one region decode, encoded and written in parallel
+    private void saveRenditions(final Rect rect) {
+        CropUtil.startBackgroundJob(this, null, getResources().getString(R.string.crop__saving), CropMetrics.JOB_SAVE,
+                new Runnable() {
+                    public void run() {
+                        try {
+                            writeRenditions(rect);
+                        } catch (Exception e) {
+                            Log.e("Error saving renditions: " + e.getMessage(), e);
+                            setResultException(e instanceof ExecutionException ? e.getCause() : e);
+                        } catch (OutOfMemoryError e) {
+                            Log.e("OOM saving renditions: " + e.getMessage(), e);
+                            setResultException(e);
+                        }
+                        finish();
+                    }
+                }, handler
+        );
+    }
+
+    private void writeRenditions(Rect rect) throws Exception {
+        boolean primary = saveUri != null || inMemoryResult;
+        int count = renditionOptions.length + (primary ? 1 : 0);
+        CropEngine.Options[] options = Arrays.copyOf(renditionOptions, count);
+        if (primary) {
+            options[count - 1] = outputOptions;
+        }
+        final Bitmap[] bitmaps = engine.decodeRenditions(source, rect, exifRotation, options);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        List<Future<Void>> writes = new ArrayList<Future<Void>>();
         try {
-            is = getContentResolver().openInputStream(sourceUri);
-            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
-            final int width = decoder.getWidth();
-            final int height = decoder.getHeight();
-
-            if (exifRotation != 0) {
-                // Adjust crop area to account for image rotation
-                Matrix matrix = new Matrix();
-                matrix.setRotate(-exifRotation);
-
-                RectF adjusted = new RectF();
-                matrix.mapRect(adjusted, new RectF(rect));
-
-                // Adjust to account for origin at 0,0
-                adjusted.offset(adjusted.left < 0 ? width : 0, adjusted.top < 0 ? height : 0);
-                rect = new Rect((int) adjusted.left, (int) adjusted.top, (int) adjusted.right, (int) adjusted.bottom);
+            for (int i = 0; i < renditionOptions.length; i++) {
+                final Bitmap bitmap = bitmaps[i];
+                final CropEngine.Options rendition = renditionOptions[i];
+                final Uri output = renditionOutputs[i];
+                Callable<Void> task = new Callable<Void>() {
+                    public Void call() throws IOException {
+                        CropUtil.write(getContentResolver(), output,
+                                engine.encodeOriented(bitmap, exifOrientation, rendition));
+                        return null;
+                    }
+                };
+                tasks.add(task);
+                writes.add(CropExecutor.submit(CropMetrics.JOB_RENDITION, CropExecutor.Priority.UI, task));
             }
+            // The main output is encoded here while the pool works on the renditions
+            byte[] data = primary ? engine.encodeOriented(bitmaps[count - 1], exifOrientation, outputOptions) : null;
+            for (int i = 0; i < writes.size(); i++) {
+                // Write a rendition that has not started here, rather than wait on a worker for it
+                if (CropExecutor.dequeue(writes.get(i))) {
+                    tasks.get(i).call();
+                } else {
+                    writes.get(i).get();
+                }
+            }
+            // Only once every rendition is written, so the caller never gets a partial result
+            if (primary) {
+                deliverOutput(data, null);
+            }
+        } finally {
+            // No write may still be using a bitmap once it is recycled
+            for (Future<Void> write : writes) {
+                if (!CropExecutor.dequeue(write)) {
+                    awaitQuietly(write);
+                }
+            }
+            for (Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+        }
+    }
 
+    // Waits for a job through interrupts, its outcome has been reported already if it matters
+    private static void awaitQuietly(Future<?> job) {
+        boolean interrupted = false;
+        while (true) {
             try {
-                croppedImage = decoder.decodeRegion(rect, new BitmapFactory.Options());
-                if (croppedImage != null && (rect.width() > outWidth || rect.height() > outHeight)) {
-                    Matrix matrix = new Matrix();
-                    matrix.postScale((float) outWidth / rect.width(), (float) outHeight / rect.height());
-                    croppedImage = Bitmap.createBitmap(croppedImage, 0, 0, croppedImage.getWidth(), croppedImage.getHeight(), matrix, true);
-                }
-            } catch (IllegalArgumentException e) {
-                // Rethrow with some extra information
-                throw new IllegalArgumentException("Rectangle " + rect + " is outside of the image ("
-                        + width + "," + height + "," + exifRotation + ")", e);
+                job.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (Exception e) {
+                break;
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    private byte[] encodeCrop(Rect rect) {
+        try {
+            return session.encodeCrop(rect, exifRotation, exifOrientation, outputOptions);
         } catch (IOException e) {
             Log.e("Error cropping image: " + e.getMessage(), e);
             setResultException(e);
+        } catch (IllegalArgumentException e) {
+            Log.e("Error cropping image: " + e.getMessage(), e);
+            setResultException(e);
         } catch (OutOfMemoryError e) {
             Log.e("OOM cropping image: " + e.getMessage(), e);
             setResultException(e);
-        } finally {
-            CropUtil.closeSilently(is);
         }
-        return croppedImage;
+        return null;
+    }
+
+    // Runs on the save job
+    private Bitmap decodeRegionCrop(Rect rect) {
+        try {
+            return engine.decodeRegion(source, rect, exifRotation, outputOptions);
+        } catch (IllegalArgumentException e) {
+            Log.e("Error cropping image: " + e.getMessage(), e);
+            setResultException(e);
+        } catch (IOException e) {
+            Log.e("Error cropping image: " + e.getMessage(), e);
+            setResultException(e);
+        } catch (OutOfMemoryError e) {
+            Log.e("OOM cropping image: " + e.getMessage(), e);
+            setResultException(e);
+        }
+        return null;
     }
 
     private void clearImageView() {
@@ -372,49 +589,141 @@ public class CropImageActivity extends MonitoredActivity {
         if (rotateBitmap != null) {
             rotateBitmap.recycle();
         }
-        System.gc();
     }
 
     private void saveOutput(Bitmap croppedImage) {
-        if (saveUri != null) {
-            OutputStream outputStream = null;
+        Bitmap handedOver = null;
+        if (saveUri != null || inMemoryResult) {
             try {
-                outputStream = getContentResolver().openOutputStream(saveUri);
-                if (outputStream != null) {
-                    croppedImage.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+                byte[] data = engine.encodeOriented(croppedImage, exifOrientation, outputOptions);
+                if (inMemoryResult) {
+                    try {
+                        handedOver = CropUtil.rotate(croppedImage, exifRotation);
+                    } catch (OutOfMemoryError e) {
+                        // The encoded result is still delivered, the caller decodes it if it wants a bitmap
+                        Log.e("OOM rotating result: " + e.getMessage(), e);
+                    }
                 }
+                deliverOutput(data, handedOver);
             } catch (IOException e) {
                 setResultException(e);
-                Log.e("Cannot open file: " + saveUri, e);
-            } finally {
-                CropUtil.closeSilently(outputStream);
+                Log.e("Cannot encode image", e);
             }
-
-            CropUtil.copyExifRotation(
-                    CropUtil.getFromMediaUri(this, getContentResolver(), sourceUri),
-                    CropUtil.getFromMediaUri(this, getContentResolver(), saveUri)
-            );
-
-            setResultUri(saveUri);
         }
 
         final Bitmap b = croppedImage;
+        final boolean recycle = handedOver != croppedImage;
         handler.post(new Runnable() {
             public void run() {
+                if (!recycle) {
+                    // Displayed while saving, but now owned by the caller
+                    imageView.setRecycler(null);
+                }
                 imageView.clear();
-                b.recycle();
+                if (recycle) {
+                    b.recycle();
+                }
             }
         });
 
         finish();
     }
 
+    // Writes the output file, or for in-memory results hands the data over right away and writes
+    // the file in the background. The result reports when that write is done or has failed.
+    private void deliverOutput(final byte[] data, Bitmap bitmap) {
+        if (!inMemoryResult) {
+            writeOutput(data);
+            return;
+        }
+        Future<Void> write = null;
+        if (saveUri != null) {
+            final Uri uri = saveUri;
+            final ContentResolver resolver = getContentResolver();
+            write = CropExecutor.submit(CropMetrics.JOB_WRITE, CropExecutor.Priority.BACKGROUND, new Callable<Void>() {
+                public Void call() throws IOException {
+                    try {
+                        CropUtil.write(resolver, uri, data);
+                    } catch (IOException e) {
+                        Log.e("Cannot write file: " + uri, e);
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        }
+        String key = CropResult.publish(new CropResult(data, bitmap, saveUri, write));
+        setResult(RESULT_OK, new Intent()
+                .putExtra(MediaStore.EXTRA_OUTPUT, saveUri)
+                .putExtra(Crop.Extra.RESULT_KEY, key));
+    }
+
+    private void writeOutput(byte[] data) {
+        if (saveUri == null) {
+            return;
+        }
+        try {
+            CropUtil.write(getContentResolver(), saveUri, data);
+        } catch (IOException e) {
+            setResultException(e);
+            Log.e("Cannot open file: " + saveUri, e);
+        }
+
+        setResultUri(saveUri);
+    }
+
+    public void onCropEditStarted() {
+        speculativeEncoder.cancel();
+    }
+
+    public void onCropEdited() {
+        speculativeEncoder.restart();
+    }
+
+    // Asked once the crop has been idle
+    public Rect getIdleCropRect() {
+        if (cropView == null || sampleSize == 0 || isSaving) {
+            return null;
+        }
+        return cropView.getScaledCropRect(sampleSize);
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (rotateBitmap != null) {
+        if (inputLoad != null) {
+            inputLoad.cancel(false);
+            inputLoad = null;
+        }
+        if (subjectDetection != null) {
+            subjectDetection.cancel(false);
+        }
+        if (!isSaving) {
+            speculativeEncoder.cancel();
+        }
+        if (rotateBitmap != null && !isRetained) {
             rotateBitmap.recycle();
         }
+        if (isFinishing()) {
+            CropUtil.clearTempFiles(this);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryGovernor.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW && !isSaving) {
+            speculativeEncoder.cancel();
+        }
+    }
+
+    @Override
+    public void onBackPressed() {
+        // The save job finishes the activity itself, possibly before its dialog shows
+        if (!isSaving) {
+            super.onBackPressed();
+        }
     }
 
     @Override
@@ -2,43 +2,94 @@ package com.soundcloud.android.crop;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.VelocityTracker;
+import android.view.ViewConfiguration;
 
 import java.util.ArrayList;
 
 public class CropImageView extends ImageViewTouchBase {
 
+    /**
+     * Screen or component the view crops for
+     */
+    interface Host {
+        boolean isSaving();
+
+        void onCropEditStarted();
+
+        void onCropEdited();
+    }
+
     ArrayList<HighlightView> highlightViews = new ArrayList<HighlightView>();
     HighlightView motionHighlightView;
-    Context context;
+    Host host;
 
     private float lastX;
     private float lastY;
     private int motionEdge;
     private int validPointerId;
 
+    // Pinch zoom and pan of the image itself, when not dragging a crop rectangle
+    private ScaleGestureDetector scaleDetector;
+    private VelocityTracker velocityTracker;
+    private int minFlingVelocity;
+    private int maxFlingVelocity;
+    private boolean panning;
+    private float lastFocusX;
+    private float lastFocusY;
+
+    // Gesture input accumulated between frames, applied as one matrix update per frame
+    private float pendingScale = 1F;
+    private float pendingFocusX;
+    private float pendingFocusY;
+    private float pendingPanX;
+    private float pendingPanY;
+
     public CropImageView(Context context) {
         super(context);
+        initGestures(context);
     }
 
     public CropImageView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        initGestures(context);
     }
 
     public CropImageView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        initGestures(context);
+    }
+
+    private void initGestures(Context context) {
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                pendingScale *= detector.getScaleFactor();
+                pendingFocusX = detector.getFocusX();
+                pendingFocusY = detector.getFocusY();
+                requestAnimationFrame();
+                return true;
+            }
+        });
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        minFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        maxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
     }
 
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
         if (bitmapDisplayed.getBitmap() != null) {
+            Matrix unrotated = getUnrotatedMatrix();
             for (HighlightView hv : highlightViews) {
-
-                hv.matrix.set(getUnrotatedMatrix());
+                hv.matrix.set(unrotated);
                 hv.invalidate();
                 if (hv.hasFocus()) {
                     centerBasedOnHighlightView(hv);
@@ -50,48 +101,65 @@ public class CropImageView extends ImageViewTouchBase {
     @Override
     protected void zoomTo(float scale, float centerX, float centerY) {
         super.zoomTo(scale, centerX, centerY);
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.set(getUnrotatedMatrix());
-            hv.invalidate();
-        }
+        updateHighlightMatrices();
     }
 
     @Override
     protected void zoomIn() {
         super.zoomIn();
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.set(getUnrotatedMatrix());
-            hv.invalidate();
-        }
+        updateHighlightMatrices();
     }
 
     @Override
     protected void zoomOut() {
         super.zoomOut();
-        for (HighlightView hv : highlightViews) {
-            hv.matrix.set(getUnrotatedMatrix());
-            hv.invalidate();
-        }
+        updateHighlightMatrices();
     }
 
     @Override
     protected void postTranslate(float deltaX, float deltaY) {
         super.postTranslate(deltaX, deltaY);
+        updateHighlightMatrices();
+    }
+
+    // Share the cached unrotated matrix with all highlight views, it is only
+    // recomputed when the base or supplementary matrix actually changed
+    private void updateHighlightMatrices() {
+        if (highlightViews.isEmpty()) {
+            return;
+        }
+        Matrix unrotated = getUnrotatedMatrix();
         for (HighlightView hv : highlightViews) {
-            hv.matrix.postTranslate(deltaX, deltaY);
+            hv.matrix.set(unrotated);
             hv.invalidate();
         }
     }
 
     @Override
     public boolean onTouchEvent(@NonNull MotionEvent event) {
-        CropImageActivity cropImageActivity = (CropImageActivity) context;
-        if (cropImageActivity.isSaving()) {
+        if (host == null || host.isSaving()) {
             return false;
         }
 
-        switch (event.getAction()) {
+        if (velocityTracker == null) {
+            velocityTracker = VelocityTracker.obtain();
+        }
+        // Also picks up the batched historical samples of move events
+        velocityTracker.addMovement(event);
+        if (motionHighlightView != null && event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN) {
+            // A second finger turns a drag of the crop area into a pinch of the image
+            motionHighlightView.setMode(HighlightView.ModifyMode.None);
+            motionHighlightView = null;
+            host.onCropEdited();
+            panning = true;
+        }
+        if (motionHighlightView == null) {
+            scaleDetector.onTouchEvent(event);
+        }
+
+        switch (event.getActionMasked()) {
         case MotionEvent.ACTION_DOWN:
+            stopFling();
             for (HighlightView hv : highlightViews) {
                 int edge = hv.getHit(event.getX(), event.getY());
                 if (edge != HighlightView.GROW_NONE) {
@@ -104,16 +172,47 @@ public class CropImageView extends ImageViewTouchBase {
                     motionHighlightView.setMode((edge == HighlightView.MOVE)
                             ? HighlightView.ModifyMode.Move
                             : HighlightView.ModifyMode.Grow);
+                    host.onCropEditStarted();
                     break;
                 }
             }
+            if (motionHighlightView == null) {
+                panning = true;
+                updateFocus(event, -1);
+            }
+            break;
+        case MotionEvent.ACTION_POINTER_DOWN:
+        case MotionEvent.ACTION_POINTER_UP:
+            if (panning) {
+                // Restart the pan from the new focal point so it doesn't jump
+                int ignoredIndex = event.getActionMasked() == MotionEvent.ACTION_POINTER_UP
+                        ? event.getActionIndex() : -1;
+                updateFocus(event, ignoredIndex);
+            }
             break;
         case MotionEvent.ACTION_UP:
             if (motionHighlightView != null) {
                 centerBasedOnHighlightView(motionHighlightView);
                 motionHighlightView.setMode(HighlightView.ModifyMode.None);
+                host.onCropEdited();
+            } else if (panning && getScale() > 1F) {
+                velocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
+                float velocityX = velocityTracker.getXVelocity();
+                float velocityY = velocityTracker.getYVelocity();
+                if (Math.abs(velocityX) > minFlingVelocity || Math.abs(velocityY) > minFlingVelocity) {
+                    applyPendingGesture();
+                    fling(velocityX, velocityY);
+                }
             }
-            motionHighlightView = null;
+            endGesture();
+            center();
+            break;
+        case MotionEvent.ACTION_CANCEL:
+            if (motionHighlightView != null) {
+                motionHighlightView.setMode(HighlightView.ModifyMode.None);
+                host.onCropEdited();
+            }
+            endGesture();
             center();
             break;
         case MotionEvent.ACTION_MOVE:
@@ -122,11 +221,20 @@ public class CropImageView extends ImageViewTouchBase {
                         - lastX, event.getY() - lastY);
                 lastX = event.getX();
                 lastY = event.getY();
+            } else if (panning) {
+                float focusX = lastFocusX;
+                float focusY = lastFocusY;
+                updateFocus(event, -1);
+                if (getScale() > 1F || scaleDetector.isInProgress()) {
+                    pendingPanX += lastFocusX - focusX;
+                    pendingPanY += lastFocusY - focusY;
+                    requestAnimationFrame();
+                }
             }
 
             // If we're not zoomed then there's no point in even allowing the user to move the image around.
             // This call to center puts it back to the normalized location.
-            if (getScale() == 1F) {
+            if (getScale() == 1F && !scaleDetector.isInProgress()) {
                 center();
             }
             break;
@@ -135,6 +243,59 @@ public class CropImageView extends ImageViewTouchBase {
         return true;
     }
 
+    // Average position of the pointers still down, excluding ignoredIndex
+    private void updateFocus(MotionEvent event, int ignoredIndex) {
+        float sumX = 0, sumY = 0;
+        int count = 0;
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            if (i == ignoredIndex) continue;
+            sumX += event.getX(i);
+            sumY += event.getY(i);
+            count++;
+        }
+        if (count > 0) {
+            lastFocusX = sumX / count;
+            lastFocusY = sumY / count;
+        }
+    }
+
+    private void endGesture() {
+        motionHighlightView = null;
+        panning = false;
+        if (velocityTracker != null) {
+            velocityTracker.recycle();
+            velocityTracker = null;
+        }
+    }
+
+    @Override
+    protected boolean onAnimationFrame(long frameTimeNanos) {
+        applyPendingGesture();
+        return super.onAnimationFrame(frameTimeNanos);
+    }
+
+    // Apply the scale and pan accumulated since the last frame as a single suppMatrix update
+    private void applyPendingGesture() {
+        if (pendingScale == 1F && pendingPanX == 0F && pendingPanY == 0F) {
+            return;
+        }
+        if (bitmapDisplayed.getBitmap() != null) {
+            float scale = getScale();
+            float targetScale = Math.max(1F, Math.min(maxZoom, scale * pendingScale));
+            float deltaScale = targetScale / scale;
+            if (deltaScale != 1F) {
+                suppMatrix.postScale(deltaScale, deltaScale, pendingFocusX, pendingFocusY);
+            }
+            suppMatrix.postTranslate(pendingPanX, pendingPanY);
+            matrixChanged();
+            center();
+            updateHighlightMatrices();
+        }
+        pendingScale = 1F;
+        pendingPanX = 0F;
+        pendingPanY = 0F;
+    }
+
     // Pan the displayed image to make sure the cropping rectangle is visible.
     private void ensureVisible(HighlightView hv) {
         Rect r = hv.drawRect;
@@ -192,4 +353,13 @@ public class CropImageView extends ImageViewTouchBase {
         highlightViews.add(hv);
         invalidate();
     }
+
+    // Crop rectangle over the whole of the displayed bitmap
+    HighlightView addHighlight(RotateBitmap bitmap, RectF cropRect, boolean maintainAspectRatio) {
+        HighlightView hv = new HighlightView(this);
+        Rect imageRect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        hv.setup(getUnrotatedMatrix(), imageRect, cropRect, maintainAspectRatio);
+        add(hv);
+        return hv;
+    }
 }
@@ -0,0 +1,181 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timings of background crop jobs, e.g. how long users wait on the "Saving picture" dialog, and
+ * how images were sized to the available memory
+ */
+public class CropMetrics {
+
+    public static final String JOB_PREFETCH = "prefetch";
+    public static final String JOB_LOAD = "load";
+    public static final String JOB_SAVE = "save";
+    public static final String JOB_SPECULATIVE_SAVE = "speculative_save";
+    public static final String JOB_WRITE = "write";
+    public static final String JOB_RENDITION = "rendition";
+    public static final String JOB_DECODE_STRIPS = "decode_strips";
+    public static final String JOB_BATCH = "batch";
+    public static final String JOB_DETECT_SUBJECT = "detect_subject";
+
+    /**
+     * Receives every finished job, on the worker thread that ran it
+     */
+    public interface Listener {
+        void onJobFinished(String job, long queuedMs, long runMs);
+    }
+
+    /**
+     * Aggregated timings for one kind of job
+     */
+    public static class JobStats {
+        public int count;
+        public long totalQueuedMs;
+        public long maxQueuedMs;
+        public long totalRunMs;
+        public long maxRunMs;
+
+        JobStats copy() {
+            JobStats copy = new JobStats();
+            copy.count = count;
+            copy.totalQueuedMs = totalQueuedMs;
+            copy.maxQueuedMs = maxQueuedMs;
+            copy.totalRunMs = totalRunMs;
+            copy.maxRunMs = maxRunMs;
+            return copy;
+        }
+    }
+
+    /**
+     * What the memory governor learned about the device and decided for the images it sized
+     */
+    public static class MemoryStats {
+        public long heapLimitBytes;
+        public int memoryClassMb;
+        public boolean largeHeap;
+        public boolean lowRamDevice;
+        public int previewMaxSize;
+        public Bitmap.Config previewConfig;
+        public int tiledDecodes;
+        public int reducedOutputs;
+        public int trimCount;
+        public int lastTrimLevel;
+
+        MemoryStats copy() {
+            MemoryStats copy = new MemoryStats();
+            copy.heapLimitBytes = heapLimitBytes;
+            copy.memoryClassMb = memoryClassMb;
+            copy.largeHeap = largeHeap;
+            copy.lowRamDevice = lowRamDevice;
+            copy.previewMaxSize = previewMaxSize;
+            copy.previewConfig = previewConfig;
+            copy.tiledDecodes = tiledDecodes;
+            copy.reducedOutputs = reducedOutputs;
+            copy.trimCount = trimCount;
+            copy.lastTrimLevel = lastTrimLevel;
+            return copy;
+        }
+    }
+
+    private static final Map<String, JobStats> jobs = new HashMap<String, JobStats>();
+    private static final MemoryStats memory = new MemoryStats();
+    private static volatile Listener listener;
+
+    private CropMetrics() {}
+
+    public static void setListener(Listener listener) {
+        CropMetrics.listener = listener;
+    }
+
+    /**
+     * @param job Job name, e.g. {@link #JOB_SAVE}
+     * @return Copy of the timings recorded so far, empty if the job never ran
+     */
+    public static JobStats getJobStats(String job) {
+        synchronized (jobs) {
+            JobStats stats = jobs.get(job);
+            return stats != null ? stats.copy() : new JobStats();
+        }
+    }
+
+    /**
+     * @return Copy of the memory decisions made so far
+     */
+    public static MemoryStats getMemoryStats() {
+        synchronized (memory) {
+            return memory.copy();
+        }
+    }
+
+    /**
+     * Clears job timings and memory counters, the device profile is kept
+     */
+    public static void reset() {
+        synchronized (jobs) {
+            jobs.clear();
+        }
+        synchronized (memory) {
+            memory.tiledDecodes = 0;
+            memory.reducedOutputs = 0;
+            memory.trimCount = 0;
+        }
+    }
+
+    static void recordJob(String job, long queuedMs, long runMs) {
+        synchronized (jobs) {
+            JobStats stats = jobs.get(job);
+            if (stats == null) {
+                stats = new JobStats();
+                jobs.put(job, stats);
+            }
+            stats.count++;
+            stats.totalQueuedMs += queuedMs;
+            stats.maxQueuedMs = Math.max(stats.maxQueuedMs, queuedMs);
+            stats.totalRunMs += runMs;
+            stats.maxRunMs = Math.max(stats.maxRunMs, runMs);
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onJobFinished(job, queuedMs, runMs);
+        }
+    }
+
+    static void recordMemoryProfile(long heapLimitBytes, int memoryClassMb, boolean largeHeap, boolean lowRamDevice) {
+        synchronized (memory) {
+            memory.heapLimitBytes = heapLimitBytes;
+            memory.memoryClassMb = memoryClassMb;
+            memory.largeHeap = largeHeap;
+            memory.lowRamDevice = lowRamDevice;
+        }
+    }
+
+    static void recordPreviewDecision(int maxSize, Bitmap.Config config) {
+        synchronized (memory) {
+            memory.previewMaxSize = maxSize;
+            memory.previewConfig = config;
+        }
+    }
+
+    static void recordTiledDecode() {
+        synchronized (memory) {
+            memory.tiledDecodes++;
+        }
+    }
+
+    static void recordReducedOutput() {
+        synchronized (memory) {
+            memory.reducedOutputs++;
+        }
+    }
+
+    static void recordTrim(int level) {
+        synchronized (memory) {
+            memory.trimCount++;
+            memory.lastTrimLevel = level;
+        }
+    }
+
+}
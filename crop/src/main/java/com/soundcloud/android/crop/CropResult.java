@@ -0,0 +1,142 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Cropped image handed over in memory, so the caller does not have to read back and decode the
+ * output file. Obtain it with {@link Crop#getResult(android.content.Intent)}.
+ */
+public class CropResult {
+
+    private static final Map<String, CropResult> pending = new HashMap<String, CropResult>();
+    private static int nextKey;
+
+    private final byte[] data;
+    private final Uri uri;
+    private final Future<?> write;
+    private Bitmap bitmap;
+
+    CropResult(byte[] data, Bitmap bitmap, Uri uri, Future<?> write) {
+        this.data = data;
+        this.bitmap = bitmap;
+        this.uri = uri;
+        this.write = write;
+    }
+
+    /**
+     * @return Encoded image, exactly as written to the output Uri
+     */
+    public ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Cropped image in display orientation, owned by the caller. When the crop screen did not
+     * keep its bitmap, e.g. because it ran short of memory, this decodes and rotates the encoded
+     * image on the calling thread, so call it off the UI thread for large crops.
+     *
+     * @return Bitmap, or null if it cannot be decoded
+     */
+    public synchronized Bitmap getBitmap() {
+        if (bitmap == null || bitmap.isRecycled()) {
+            bitmap = decode();
+        }
+        return bitmap;
+    }
+
+    private Bitmap decode() {
+        Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length);
+        int rotation = 0;
+        try {
+            rotation = Exif.readRotation(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            // Not a JPEG, the pixels are already rotated
+        }
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap rotated = CropUtil.rotate(decoded, rotation);
+        if (rotated != decoded) {
+            decoded.recycle();
+        }
+        return rotated;
+    }
+
+    // Drops the bitmap of a result nobody is going to pick up
+    synchronized void release() {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return Uri the image is written to in the background, which may not be complete yet, null
+     * if there is none
+     * @see #awaitUri()
+     */
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * Wait for the image to be written to its Uri. Blocks, so call it off the UI thread.
+     *
+     * @return Uri holding the complete image, null if there is none
+     * @throws IOException If writing the image failed
+     */
+    public Uri awaitUri() throws IOException, InterruptedException {
+        if (write != null) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+        return uri;
+    }
+
+    // Results wait here between the crop screen finishing and its caller picking them up. Only
+    // the most recent one is kept, as nothing can start a second crop in between.
+    static String publish(CropResult result) {
+        synchronized (pending) {
+            pending.clear();
+            String key = String.valueOf(++nextKey);
+            pending.put(key, result);
+            return key;
+        }
+    }
+
+    static CropResult take(String key) {
+        synchronized (pending) {
+            return key != null ? pending.remove(key) : null;
+        }
+    }
+
+    // Bitmaps of results nobody picked up yet can be decoded again from their data
+    static void trim() {
+        synchronized (pending) {
+            for (CropResult result : pending.values()) {
+                synchronized (result) {
+                    result.bitmap = null;
+                }
+            }
+        }
+    }
+
+}
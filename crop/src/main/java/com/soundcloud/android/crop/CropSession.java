@@ -0,0 +1,169 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES10;
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/*
+ * Loading and cropping of one image, shared by CropImageActivity and CropView so that both decode
+ * and save the same way. Hosts drop callbacks for an image they no longer show.
+ */
+class CropSession {
+
+    private static final int SIZE_DEFAULT = 2048;
+    private static final int SIZE_LIMIT = 4096;
+    private static final int SIZE_THUMBNAIL = 256;
+
+    /**
+     * Receives load results on the UI thread
+     */
+    interface LoadCallback {
+        void onThumbnailLoaded(CropEngine.Preview thumbnail);
+
+        void onPreviewLoaded(CropEngine.Preview preview, Throwable error);
+    }
+
+    private final CropEngine engine = new CropEngine();
+    private final Handler handler;
+    private final CropEngine.Source source;
+
+    CropSession(Handler handler, CropEngine.Source source) {
+        this.handler = handler;
+        this.source = source;
+    }
+
+    CropEngine.Source getSource() {
+        return source;
+    }
+
+    static int getMaxImageSize(Context context) {
+        int textureLimit = getMaxTextureSize();
+        int limit = textureLimit == 0 ? SIZE_DEFAULT : Math.min(textureLimit, SIZE_LIMIT);
+        return MemoryGovernor.get(context).previewMaxSize(limit);
+    }
+
+    private static int getMaxTextureSize() {
+        // The OpenGL texture size is the maximum size that can be drawn in an ImageView
+        int[] maxSize = new int[1];
+        GLES10.glGetIntegerv(GLES10.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        return maxSize[0];
+    }
+
+    /**
+     * Decode the preview in the background, using a prefetched one as soon as it is done. Without
+     * one, a thumbnail is decoded first where asked for and the source has one.
+     */
+    Future<?> load(Context context, final boolean thumbnail, final LoadCallback callback) {
+        final int maxSize = getMaxImageSize(context);
+        final Bitmap.Config config = MemoryGovernor.get(context).previewConfig();
+        final Future<CropEngine.Preview> prefetched = PreviewCache.take(source, maxSize, config);
+        return CropExecutor.submit(CropMetrics.JOB_LOAD, CropExecutor.Priority.UI, new Runnable() {
+            public void run() {
+                CropEngine.Preview preview = null;
+                Throwable error = null;
+                // Decode here rather than wait on a worker for a prefetch that has not started
+                if (prefetched != null && !CropExecutor.dequeue(prefetched)) {
+                    try {
+                        preview = prefetched.get();
+                    } catch (Exception e) {
+                        Log.e("Prefetch failed, decoding again: " + e.getMessage(), e);
+                    }
+                }
+                if (preview == null) {
+                    if (thumbnail) {
+                        loadThumbnail(callback);
+                    }
+                    try {
+                        preview = decodePreview(maxSize, config);
+                    } catch (IOException e) {
+                        Log.e("Error reading image: " + e.getMessage(), e);
+                        error = e;
+                    } catch (OutOfMemoryError e) {
+                        Log.e("OOM reading image: " + e.getMessage(), e);
+                        error = e;
+                    }
+                }
+                final CropEngine.Preview result = preview;
+                final Throwable failure = error;
+                handler.post(new Runnable() {
+                    public void run() {
+                        callback.onPreviewLoaded(result, failure);
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on the load job
+    private void loadThumbnail(final LoadCallback callback) {
+        try {
+            final CropEngine.Preview thumbnail = engine.decodeThumbnail(source, SIZE_THUMBNAIL);
+            if (thumbnail != null) {
+                handler.post(new Runnable() {
+                    public void run() {
+                        callback.onThumbnailLoaded(thumbnail);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            Log.e("Error reading thumbnail: " + e.getMessage(), e);
+        } catch (OutOfMemoryError e) {
+            Log.e("OOM reading thumbnail: " + e.getMessage(), e);
+        }
+    }
+
+    private CropEngine.Preview decodePreview(int maxSize, Bitmap.Config config) throws IOException {
+        try {
+            return engine.decodePreview(source, maxSize, config);
+        } catch (OutOfMemoryError e) {
+            // The heap filled up since the budget was taken, a smaller preview still lets the user crop
+            Log.e("OOM reading image, retrying at half size", e);
+            return engine.decodePreview(source, maxSize / 2, Bitmap.Config.RGB_565);
+        }
+    }
+
+    /**
+     * @return Lossless crop of a JPEG source, null if the crop has to go through pixels
+     */
+    byte[] cropLossless(Rect rect, int exifRotation, CropEngine.Options options) throws IOException {
+        return engine.cropLossless(source, rect, exifRotation, options);
+    }
+
+    /**
+     * @return Cropped bitmap in source orientation, owned by the caller
+     */
+    Bitmap decodeCrop(Rect rect, int exifRotation, CropEngine.Options options) throws IOException {
+        Bitmap cropped = engine.decodeRegion(source, rect, exifRotation, options);
+        if (cropped == null) {
+            throw new IOException("Cannot decode image region");
+        }
+        return cropped;
+    }
+
+    byte[] encode(Bitmap cropped, int exifOrientation, CropEngine.Options options) throws IOException {
+        return engine.encodeOriented(cropped, exifOrientation, options);
+    }
+
+    /**
+     * Crop and encode, losslessly where the source allows
+     */
+    byte[] encodeCrop(Rect rect, int exifRotation, int exifOrientation, CropEngine.Options options)
+            throws IOException {
+        byte[] lossless = cropLossless(rect, exifRotation, options);
+        if (lossless != null) {
+            return lossless;
+        }
+        Bitmap cropped = decodeCrop(rect, exifRotation, options);
+        try {
+            return encode(cropped, exifOrientation, options);
+        } finally {
+            cropped.recycle();
+        }
+    }
+
+}
@@ -20,7 +20,8 @@ import android.app.ProgressDialog;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.media.ExifInterface;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
@@ -30,10 +31,18 @@ import android.text.TextUtils;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /*
  * Modified from original in AOSP.
@@ -43,6 +52,15 @@ class CropUtil {
     private static final String SCHEME_FILE = "file";
     private static final String SCHEME_CONTENT = "content";
 
+    private static final String TEMP_DIR = "android-crop";
+    private static final long TEMP_FILE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long TEMP_FILE_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+    private static final long TRANSFER_CHUNK_BYTES = 1024L * 1024;
+    private static final String JOB_CLEAR_TEMP_FILES = "clear_temp_files";
+
+    // Local copies of remote images, reused until the crop session finishes
+    private static final Map<Uri, File> tempFiles = new HashMap<Uri, File>();
+
     public static void closeSilently(@Nullable Closeable c) {
         if (c == null) return;
         try {
@@ -52,48 +70,33 @@ class CropUtil {
         }
     }
 
-    public static int getExifRotation(File imageFile) {
-        if (imageFile == null) return 0;
+    public static void closeSilently(@Nullable ParcelFileDescriptor pfd) {
+        if (pfd == null) return;
         try {
-            ExifInterface exif = new ExifInterface(imageFile.getAbsolutePath());
-            // We only recognize a subset of orientation tag values
-            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED)) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    return 90;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    return 180;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    return 270;
-                default:
-                    return ExifInterface.ORIENTATION_UNDEFINED;
-            }
-        } catch (IOException e) {
-            Log.e("Error getting Exif data", e);
-            return 0;
+            pfd.close();
+        } catch (Throwable t) {
+            // Do nothing
         }
     }
 
-    public static boolean copyExifRotation(File sourceFile, File destFile) {
-        if (sourceFile == null || destFile == null) return false;
-        try {
-            ExifInterface exifSource = new ExifInterface(sourceFile.getAbsolutePath());
-            ExifInterface exifDest = new ExifInterface(destFile.getAbsolutePath());
-            exifDest.setAttribute(ExifInterface.TAG_ORIENTATION, exifSource.getAttribute(ExifInterface.TAG_ORIENTATION));
-            exifDest.saveAttributes();
-            return true;
-        } catch (IOException e) {
-            Log.e("Error copying Exif data", e);
-            return false;
-        }
+    @Nullable
+    public static File getFromMediaUri(Context context, ContentResolver resolver, Uri uri) {
+        return getFromMediaUri(context, resolver, uri, true);
     }
 
+    // Remote images are only copied to a temp file with copy set, reading them as a stream is
+    // cheaper where nothing needs to seek
     @Nullable
-    public static File getFromMediaUri(Context context, ContentResolver resolver, Uri uri) {
+    private static File getFromMediaUri(Context context, ContentResolver resolver, Uri uri, boolean copy) {
         if (uri == null) return null;
 
         if (SCHEME_FILE.equals(uri.getScheme())) {
             return new File(uri.getPath());
         } else if (SCHEME_CONTENT.equals(uri.getScheme())) {
+            File cached = getTempFile(uri);
+            if (cached != null) {
+                return cached;
+            }
             final String[] filePathColumn = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DISPLAY_NAME };
             Cursor cursor = null;
             try {
@@ -112,7 +115,7 @@ class CropUtil {
                 }
             } catch (IllegalArgumentException e) {
                 // Google Drive images
-                return getFromMediaUriPfd(context, resolver, uri);
+                return copy ? getFromMediaUriPfd(context, resolver, uri) : null;
             } catch (SecurityException ignored) {
                 // Nothing we can do
             } finally {
@@ -122,72 +125,197 @@ class CropUtil {
         return null;
     }
 
-    private static String getTempFilename(Context context) throws IOException {
-        File outputDir = context.getCacheDir();
-        File outputFile = File.createTempFile("image", "tmp", outputDir);
-        return outputFile.getAbsolutePath();
+    /**
+     * Opens the image, preferring a local file (the media file itself or a cached copy of a
+     * remote image) so that repeated opens within a crop session don't hit the provider again.
+     * Remote images without a copy yet are streamed from the provider, not copied.
+     */
+    public static InputStream openInputStream(Context context, Uri uri) throws IOException {
+        File file = getFromMediaUri(context, context.getContentResolver(), uri, false);
+        if (file != null && file.canRead()) {
+            return new FileInputStream(file);
+        }
+        InputStream is = context.getContentResolver().openInputStream(uri);
+        if (is == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        return is;
+    }
+
+    /**
+     * @return Bitmap rotated by the given degrees, the bitmap itself for 0
+     */
+    static Bitmap rotate(Bitmap bitmap, int rotation) {
+        if (rotation % 360 == 0) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setRotate(rotation);
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    }
+
+    /**
+     * Writes encoded image data to the Uri, replacing its contents
+     */
+    public static void write(ContentResolver resolver, Uri uri, byte[] data) throws IOException {
+        OutputStream out = null;
+        try {
+            out = resolver.openOutputStream(uri);
+            if (out == null) {
+                throw new FileNotFoundException("Cannot open " + uri);
+            }
+            out.write(data);
+        } finally {
+            closeSilently(out);
+        }
+    }
+
+    /**
+     * Deletes the temp copies made for this session, file removal happens in the background
+     */
+    public static void clearTempFiles(final Context context) {
+        final List<File> files;
+        synchronized (tempFiles) {
+            files = new ArrayList<File>(tempFiles.values());
+            tempFiles.clear();
+        }
+        final File tempDir = getTempDir(context);
+        CropExecutor.submit(JOB_CLEAR_TEMP_FILES, CropExecutor.Priority.BACKGROUND, new Runnable() {
+            public void run() {
+                for (File file : files) {
+                    file.delete();
+                }
+                // Copies left behind by a process that died mid-session
+                File[] orphans = tempDir.listFiles();
+                if (orphans == null) return;
+                long cutoff = System.currentTimeMillis() - TEMP_FILE_MAX_AGE_MS;
+                for (File orphan : orphans) {
+                    if (orphan.lastModified() < cutoff) {
+                        orphan.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static File getTempFile(Uri uri) {
+        synchronized (tempFiles) {
+            File file = tempFiles.get(uri);
+            return file != null && file.exists() ? file : null;
+        }
+    }
+
+    private static File getTempDir(Context context) {
+        return new File(context.getCacheDir(), TEMP_DIR);
     }
 
     @Nullable
     private static File getFromMediaUriPfd(Context context, ContentResolver resolver, Uri uri) {
         if (uri == null) return null;
 
+        File cached = getTempFile(uri);
+        if (cached != null) {
+            return cached;
+        }
+
+        ParcelFileDescriptor pfd = null;
         FileInputStream input = null;
         FileOutputStream output = null;
+        File tempFile = null;
         try {
-            ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
-            FileDescriptor fd = pfd.getFileDescriptor();
-            input = new FileInputStream(fd);
+            pfd = resolver.openFileDescriptor(uri, "r");
+            if (pfd == null || pfd.getStatSize() > TEMP_FILE_MAX_BYTES) {
+                return null;
+            }
+            input = new FileInputStream(pfd.getFileDescriptor());
 
-            String tempFilename = getTempFilename(context);
-            output = new FileOutputStream(tempFilename);
+            File tempDir = getTempDir(context);
+            if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+                return null;
+            }
+            tempFile = File.createTempFile("image", "tmp", tempDir);
+            output = new FileOutputStream(tempFile);
 
-            int read;
-            byte[] bytes = new byte[4096];
-            while ((read = input.read(bytes)) != -1) {
-                output.write(bytes, 0, read);
+            // Let the channels move the data instead of pumping it through a Java buffer
+            FileChannel source = input.getChannel();
+            FileChannel destination = output.getChannel();
+            long position = 0;
+            long transferred;
+            while ((transferred = destination.transferFrom(source, position, TRANSFER_CHUNK_BYTES)) > 0) {
+                position += transferred;
+                if (position > TEMP_FILE_MAX_BYTES) {
+                    return null;
+                }
             }
-            return new File(tempFilename);
+
+            File copy = tempFile;
+            tempFile = null;
+            synchronized (tempFiles) {
+                tempFiles.put(uri, copy);
+            }
+            return copy;
         } catch (IOException ignored) {
             // Nothing we can do
         } finally {
             closeSilently(input);
             closeSilently(output);
+            closeSilently(pfd);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
         }
         return null;
     }
 
     public static void startBackgroundJob(MonitoredActivity activity,
-            String title, String message, Runnable job, Handler handler) {
-        // Make the progress dialog uncancelable, so that we can guarantee
-        // the thread will be done before the activity getting destroyed
-        ProgressDialog dialog = ProgressDialog.show(
-                activity, title, message, true, false);
-        new Thread(new BackgroundJob(activity, job, dialog, handler)).start();
+            String title, String message, String tag, Runnable job, Handler handler) {
+        new BackgroundJob(activity, title, message, handler).start(tag, job);
     }
 
     private static class BackgroundJob extends MonitoredActivity.LifeCycleAdapter implements Runnable {
 
+        // Jobs that finish quicker than this never flash a dialog
+        private static final long DIALOG_DELAY_MS = 300;
+
         private final MonitoredActivity activity;
-        private final ProgressDialog dialog;
-        private final Runnable job;
+        private final String title;
+        private final String message;
         private final Handler handler;
+        private Runnable job;
+        private Future<?> future;
+        private ProgressDialog dialog;
+
+        private final Runnable showDialogRunner = new Runnable() {
+            public void run() {
+                // Make the progress dialog uncancelable. Before it shows, the activity
+                // keeps Back and its own buttons from finishing it while the job runs
+                dialog = ProgressDialog.show(activity, title, message, true, false);
+            }
+        };
+
         private final Runnable cleanupRunner = new Runnable() {
             public void run() {
                 activity.removeLifeCycleListener(BackgroundJob.this);
-                if (dialog.getWindow() != null) dialog.dismiss();
+                handler.removeCallbacks(showDialogRunner);
+                if (dialog != null && dialog.getWindow() != null) dialog.dismiss();
             }
         };
 
-        public BackgroundJob(MonitoredActivity activity, Runnable job,
-                             ProgressDialog dialog, Handler handler) {
+        public BackgroundJob(MonitoredActivity activity, String title, String message, Handler handler) {
             this.activity = activity;
-            this.dialog = dialog;
-            this.job = job;
-            this.activity.addLifeCycleListener(this);
+            this.title = title;
+            this.message = message;
             this.handler = handler;
         }
 
+        void start(String tag, Runnable job) {
+            this.job = job;
+            activity.addLifeCycleListener(this);
+            handler.postDelayed(showDialogRunner, DIALOG_DELAY_MS);
+            future = CropExecutor.submit(tag, CropExecutor.Priority.UI, this);
+        }
+
         public void run() {
             try {
                 job.run();
@@ -199,19 +327,21 @@ class CropUtil {
         @Override
         public void onActivityDestroyed(MonitoredActivity activity) {
             // We get here only when the onDestroyed being called before
-            // the cleanupRunner. So, run it now and remove it from the queue
+            // the cleanupRunner. Drop the job if it has not started yet,
+            // then run the cleanup now and remove it from the queue
+            future.cancel(false);
             cleanupRunner.run();
             handler.removeCallbacks(cleanupRunner);
         }
 
         @Override
         public void onActivityStopped(MonitoredActivity activity) {
-            dialog.hide();
+            if (dialog != null) dialog.hide();
         }
 
         @Override
         public void onActivityStarted(MonitoredActivity activity) {
-            dialog.show();
+            if (dialog != null) dialog.show();
         }
     }
 
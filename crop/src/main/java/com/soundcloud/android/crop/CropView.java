@@ -0,0 +1,378 @@
+package com.soundcloud.android.crop;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.AttributeSet;
+import android.widget.FrameLayout;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Crop screen as a view, to embed in a host layout instead of starting CropImageActivity for
+ * every crop. Keep it around and bind each new image with {@link #setImage(Uri)}; only the
+ * decode is repeated. Call {@link #release()} when the host is done with it, detaching the view
+ * from its window releases the image too.
+ */
+public class CropView extends FrameLayout implements CropImageView.Host, SpeculativeEncoder.Host {
+
+    /**
+     * Receives load events on the UI thread
+     */
+    public interface Listener {
+        void onImageLoaded(CropView view);
+
+        void onImageError(CropView view, Throwable error);
+    }
+
+    /**
+     * Receives the result of {@link #crop(Uri, CropCallback)} on the UI thread
+     */
+    public interface CropCallback {
+        void onCropped(CropResult result);
+
+        void onCropError(Throwable error);
+    }
+
+    private final Handler handler = new Handler();
+    private final SpeculativeEncoder speculativeEncoder;
+    private final CropImageView imageView;
+
+    // The view has no activity callbacks of its own, so it listens to the application
+    private final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        public void onTrimMemory(int level) {
+            MemoryGovernor.onTrimMemory(level);
+            if (level >= TRIM_MEMORY_RUNNING_LOW && !isSaving) {
+                speculativeEncoder.cancel();
+            }
+        }
+
+        public void onConfigurationChanged(Configuration newConfig) {}
+
+        public void onLowMemory() {}
+    };
+
+    private Listener listener;
+    private CropEngine.Options outputOptions = new CropEngine.Options();
+    private int aspectX;
+    private int aspectY;
+
+    private CropSession session;
+    private Future<?> load;
+    private Future<?> save;
+    // Bumped for every image bound, so that results for a previous one are dropped
+    private int generation;
+    private RotateBitmap rotateBitmap;
+    private int sampleSize;
+    private int exifRotation;
+    private int exifOrientation;
+    private HighlightView cropView;
+    private boolean isSaving;
+
+    public CropView(Context context) {
+        this(context, null);
+    }
+
+    public CropView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public CropView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        speculativeEncoder = new SpeculativeEncoder(context, handler, this);
+        imageView = new CropImageView(context);
+        imageView.host = this;
+        imageView.setRecycler(new ImageViewTouchBase.Recycler() {
+            @Override
+            public void recycle(Bitmap b) {
+                b.recycle();
+            }
+        });
+        addView(imageView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Aspect ratio of the crop, 0 for a free crop. Applies from the next image bound.
+     */
+    public void setAspect(int x, int y) {
+        aspectX = x;
+        aspectY = y;
+    }
+
+    public void setOutputOptions(CropEngine.Options options) {
+        outputOptions = options;
+        if (cropView != null) {
+            // A speculative encode with the previous options would not be used
+            speculativeEncoder.bind(session, exifRotation, exifOrientation, options);
+            speculativeEncoder.restart();
+        }
+    }
+
+    public void setImage(Uri uri) {
+        setImage(CropEngine.Source.of(getContext(), uri));
+    }
+
+    /**
+     * Replace the image being cropped. Decodes in the background, the previous image is released.
+     */
+    public void setImage(CropEngine.Source source) {
+        unbind();
+        session = new CropSession(handler, source);
+        final int bound = generation;
+        load = session.load(getContext(), false, new CropSession.LoadCallback() {
+            public void onThumbnailLoaded(CropEngine.Preview thumbnail) {
+                // Not asked for
+                thumbnail.getBitmap().recycle();
+            }
+
+            public void onPreviewLoaded(CropEngine.Preview preview, Throwable error) {
+                CropView.this.onPreviewLoaded(bound, preview, error);
+            }
+        });
+    }
+
+    private void onPreviewLoaded(int bound, CropEngine.Preview preview, Throwable error) {
+        if (bound != generation) {
+            if (preview != null) {
+                preview.getBitmap().recycle();
+            }
+            return;
+        }
+        load = null;
+        if (preview == null) {
+            if (listener != null) {
+                listener.onImageError(this, error);
+            }
+            return;
+        }
+        sampleSize = preview.getSampleSize();
+        exifRotation = preview.getExifRotation();
+        exifOrientation = preview.getExifOrientation();
+        rotateBitmap = new RotateBitmap(preview.getBitmap(), exifRotation);
+        speculativeEncoder.bind(session, exifRotation, exifOrientation, outputOptions);
+        imageView.setImageRotateBitmapResetBase(rotateBitmap, true, new Runnable() {
+            public void run() {
+                if (imageView.getScale() == 1F) {
+                    imageView.center();
+                }
+                int[] rect = CropGeometry.defaultCropRect(rotateBitmap.getWidth(), rotateBitmap.getHeight(),
+                        aspectX, aspectY);
+                cropView = imageView.addHighlight(rotateBitmap, new RectF(rect[0], rect[1], rect[2], rect[3]),
+                        aspectX != 0 && aspectY != 0);
+                cropView.setFocus(true);
+                speculativeEncoder.restart();
+                if (listener != null) {
+                    listener.onImageLoaded(CropView.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Crop area in full resolution coordinates of the displayed (rotated) image, null
+     *         while no image is loaded
+     */
+    public Rect getCropRect() {
+        return cropView != null ? cropView.getScaledCropRect(sampleSize) : null;
+    }
+
+    /**
+     * Crop the full resolution image in the background and hand it over in memory. The view
+     * stays bound to the image, so it can be cropped again or replaced.
+     *
+     * @param destination Uri to also write the image to in the background, see
+     *                    {@link CropResult#awaitUri()}, may be null
+     * @param callback    Also told of an error if no image is loaded or a crop is still running
+     */
+    public void crop(final Uri destination, final CropCallback callback) {
+        if (cropView == null || isSaving) {
+            callback.onCropError(new IllegalStateException(
+                    cropView == null ? "No image loaded" : "Already cropping"));
+            return;
+        }
+        isSaving = true;
+        final int bound = generation;
+        final CropSession session = this.session;
+        final Rect rect = getCropRect();
+        final Future<byte[]> encoded = speculativeEncoder.take(rect);
+        final CropEngine.Options options = outputOptions;
+        final int rotation = exifRotation;
+        final int orientation = exifOrientation;
+        save = CropExecutor.submit(CropMetrics.JOB_SAVE, CropExecutor.Priority.UI, new Runnable() {
+            public void run() {
+                CropResult result = null;
+                Throwable error = null;
+                try {
+                    if (encoded != null) {
+                        byte[] data = encoded(encoded, session, rect, rotation, orientation, options);
+                        // The bitmap is decoded from the data if the caller asks for it
+                        result = new CropResult(data, null, destination, write(destination, data));
+                    } else {
+                        result = crop(session, rect, rotation, orientation, options, destination);
+                    }
+                } catch (Exception e) {
+                    Log.e("Error cropping image: " + e.getMessage(), e);
+                    error = e;
+                } catch (OutOfMemoryError e) {
+                    Log.e("OOM cropping image: " + e.getMessage(), e);
+                    error = e;
+                }
+                final CropResult cropped = result;
+                final Throwable failure = error;
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (bound != generation) {
+                            // Released or bound to another image since, nobody waits for this
+                            if (cropped != null) {
+                                cropped.release();
+                            }
+                            return;
+                        }
+                        save = null;
+                        isSaving = false;
+                        if (failure == null) {
+                            callback.onCropped(cropped);
+                        } else {
+                            callback.onCropError(failure);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // A speculative encode of the crop, waited for only if it is already running
+    private static byte[] encoded(Future<byte[]> encoded, CropSession session, Rect rect, int rotation,
+                                  int orientation, CropEngine.Options options) throws IOException {
+        if (!CropExecutor.dequeue(encoded)) {
+            try {
+                return encoded.get();
+            } catch (Exception e) {
+                // Encode from scratch, e.g. after an OOM that the save might not hit again
+                Log.e("Speculative encode failed: " + e.getMessage(), e);
+            }
+        }
+        return session.encodeCrop(rect, rotation, orientation, options);
+    }
+
+    private CropResult crop(CropSession session, Rect rect, int rotation, int orientation,
+                            CropEngine.Options options, Uri destination) throws IOException {
+        byte[] lossless = session.cropLossless(rect, rotation, options);
+        if (lossless != null) {
+            // The bitmap is decoded from the data if the caller asks for it
+            return new CropResult(lossless, null, destination, write(destination, lossless));
+        }
+        Bitmap cropped = session.decodeCrop(rect, rotation, options);
+        byte[] data;
+        try {
+            data = session.encode(cropped, orientation, options);
+        } catch (IOException e) {
+            cropped.recycle();
+            throw e;
+        }
+        Bitmap rotated = CropUtil.rotate(cropped, rotation);
+        if (rotated != cropped) {
+            cropped.recycle();
+        }
+        return new CropResult(data, rotated, destination, write(destination, data));
+    }
+
+    // In the background, so the file never delays the in-memory result
+    private Future<Void> write(final Uri destination, final byte[] data) {
+        if (destination == null) {
+            return null;
+        }
+        final ContentResolver resolver = getContext().getContentResolver();
+        return CropExecutor.submit(CropMetrics.JOB_WRITE, CropExecutor.Priority.BACKGROUND, new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    CropUtil.write(resolver, destination, data);
+                } catch (IOException e) {
+                    Log.e("Cannot write file: " + destination, e);
+                    throw e;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Release the image and cancel its decode, and delete copies made of remote images. The view
+     * can be bound to a new image afterwards.
+     */
+    public void release() {
+        unbind();
+        CropUtil.clearTempFiles(getContext());
+    }
+
+    private void unbind() {
+        generation++;
+        speculativeEncoder.cancel();
+        if (load != null) {
+            load.cancel(false);
+            load = null;
+        }
+        if (save != null) {
+            save.cancel(false);
+            save = null;
+        }
+        imageView.highlightViews.clear();
+        imageView.motionHighlightView = null;
+        // The recycler releases the previous bitmap once it has been displayed
+        if (rotateBitmap != null && rotateBitmap.getBitmap() != imageView.bitmapDisplayed.getBitmap()) {
+            rotateBitmap.recycle();
+        }
+        imageView.clear();
+        rotateBitmap = null;
+        cropView = null;
+        session = null;
+        isSaving = false;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getContext().getApplicationContext().registerComponentCallbacks(trimCallbacks);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        getContext().getApplicationContext().unregisterComponentCallbacks(trimCallbacks);
+        release();
+    }
+
+    @Override
+    public boolean isSaving() {
+        return isSaving;
+    }
+
+    @Override
+    public void onCropEditStarted() {
+        speculativeEncoder.cancel();
+    }
+
+    @Override
+    public void onCropEdited() {
+        speculativeEncoder.restart();
+    }
+
+    // Asked once the crop has been idle
+    @Override
+    public Rect getIdleCropRect() {
+        return isSaving ? null : getCropRect();
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.soundcloud.android.crop;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Minimal JPEG Exif support: reads the orientation tag and embedded thumbnail from the APP1
+ * segment of a stream and writes the orientation into freshly encoded JPEG data, without going
+ * through files.
+ */
+class Exif {
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+
+    static final int ORIENTATION_NORMAL = 1;
+    private static final int ORIENTATION_ROTATE_180 = 3;
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final int ORIENTATION_ROTATE_270 = 8;
+    private static final int ORIENTATION_MAX = 8;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /**
+     * @return Rotation in degrees described by the orientation tag, 0 if there is none
+     */
+    static int readRotation(InputStream in) throws IOException {
+        return parseRotation(readApp1(in));
+    }
+
+    /**
+     * @return Orientation tag, {@link #ORIENTATION_NORMAL} if there is none
+     */
+    static int readOrientation(InputStream in) throws IOException {
+        return parseOrientation(readApp1(in));
+    }
+
+    /**
+     * @param app1 Segment from {@link #readApp1(InputStream)}, may be null
+     * @return Rotation in degrees described by the orientation tag, 0 if there is none
+     */
+    static int parseRotation(byte[] app1) {
+        return toRotation(parseOrientation(app1));
+    }
+
+    /**
+     * @param app1 Segment from {@link #readApp1(InputStream)}, may be null
+     * @return Orientation tag, mirrored ones included, {@link #ORIENTATION_NORMAL} if there is none
+     */
+    static int parseOrientation(byte[] app1) {
+        int orientation = app1 != null ? findOrientation(app1, EXIF_HEADER.length) : 0;
+        return orientation >= ORIENTATION_NORMAL && orientation <= ORIENTATION_MAX ? orientation : ORIENTATION_NORMAL;
+    }
+
+    /**
+     * @return Rotation in degrees of an orientation tag, 0 for the mirrored ones, which are
+     *         shown as stored
+     */
+    static int toRotation(int orientation) {
+        switch (orientation) {
+            case ORIENTATION_ROTATE_90:
+                return 90;
+            case ORIENTATION_ROTATE_180:
+                return 180;
+            case ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Walks the marker segments up to the first APP1 and returns it, without reading any further
+     *
+     * @return Exif APP1 payload without marker and length, null if the stream has none
+     */
+    static byte[] readApp1(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readUnsignedByte() != MARKER_PREFIX || data.readUnsignedByte() != MARKER_SOI) {
+            return null; // Not a JPEG
+        }
+        while (true) {
+            int prefix = data.readUnsignedByte();
+            if (prefix != MARKER_PREFIX) {
+                return null;
+            }
+            int marker = data.readUnsignedByte();
+            while (marker == MARKER_PREFIX) {
+                marker = data.readUnsignedByte(); // Fill bytes
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null;
+            }
+            int length = data.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker == MARKER_APP1) {
+                byte[] segment = new byte[length];
+                data.readFully(segment);
+                if (startsWith(segment, EXIF_HEADER)) {
+                    return segment;
+                }
+            } else {
+                skipFully(data, length);
+            }
+        }
+    }
+
+    private static int findOrientation(byte[] segment, int tiff) {
+        int ifd = firstIfd(segment, tiff);
+        if (ifd < 0) {
+            return 0;
+        }
+        boolean littleEndian = segment[tiff] == 'I';
+        int entry = findEntry(segment, ifd, TAG_ORIENTATION, littleEndian);
+        return entry >= 0 ? readShort(segment, entry + 8, littleEndian) : 0;
+    }
+
+    /**
+     * @param app1 Segment from {@link #readApp1(InputStream)}, may be null
+     * @return JPEG thumbnail stored in IFD1, in the orientation of the main image, null if there is none
+     */
+    static byte[] parseThumbnail(byte[] app1) {
+        int tiff = EXIF_HEADER.length;
+        int ifd0 = app1 != null ? firstIfd(app1, tiff) : -1;
+        if (ifd0 < 0) {
+            return null;
+        }
+        boolean littleEndian = app1[tiff] == 'I';
+        int next = ifd0 + 2 + readShort(app1, ifd0, littleEndian) * 12;
+        if (next + 4 > app1.length) {
+            return null;
+        }
+        int offset = readInt(app1, next, littleEndian);
+        if (offset <= 0 || tiff + offset + 2 > app1.length) {
+            return null;
+        }
+        int ifd1 = tiff + offset;
+        int offsetEntry = findEntry(app1, ifd1, TAG_THUMBNAIL_OFFSET, littleEndian);
+        int lengthEntry = findEntry(app1, ifd1, TAG_THUMBNAIL_LENGTH, littleEndian);
+        if (offsetEntry < 0 || lengthEntry < 0) {
+            return null;
+        }
+        int start = tiff + readInt(app1, offsetEntry + 8, littleEndian);
+        int length = readInt(app1, lengthEntry + 8, littleEndian);
+        if (start < tiff || length <= 0 || start + length > app1.length || start + length < start) {
+            return null;
+        }
+        byte[] thumbnail = new byte[length];
+        System.arraycopy(app1, start, thumbnail, 0, length);
+        return thumbnail;
+    }
+
+    // Offset of IFD0 within the segment, -1 if the TIFF header is invalid
+    private static int firstIfd(byte[] segment, int tiff) {
+        if (segment.length < tiff + 8) {
+            return -1;
+        }
+        boolean littleEndian;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return -1;
+        }
+        int ifd = tiff + readInt(segment, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > segment.length) {
+            return -1;
+        }
+        return ifd;
+    }
+
+    // Offset of the IFD entry with the given tag, -1 if there is none
+    private static int findEntry(byte[] segment, int ifd, int tag, boolean littleEndian) {
+        int entries = readShort(segment, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                return -1;
+            }
+            if (readShort(segment, entry, littleEndian) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes JPEG data with an Exif APP1 segment carrying the given orientation right after SOI
+     *
+     * @param jpeg        Encoded JPEG without Exif, as produced by Bitmap.compress
+     * @param orientation Orientation tag, nothing is inserted for {@link #ORIENTATION_NORMAL}
+     */
+    static void writeJpeg(OutputStream out, byte[] jpeg, int orientation) throws IOException {
+        if (orientation <= ORIENTATION_NORMAL || orientation > ORIENTATION_MAX || jpeg.length < 2
+                || (jpeg[0] & 0xFF) != MARKER_PREFIX || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            out.write(jpeg);
+            return;
+        }
+        out.write(jpeg, 0, 2);
+        out.write(buildApp1(orientation));
+        out.write(jpeg, 2, jpeg.length - 2);
+    }
+
+    /**
+     * @return Number of bytes {@link #writeJpeg} adds to JPEG data for the orientation
+     */
+    static int app1Size(int orientation) {
+        if (orientation <= ORIENTATION_NORMAL || orientation > ORIENTATION_MAX) {
+            return 0;
+        }
+        return buildApp1(orientation).length;
+    }
+
+    static int toOrientation(int rotation) {
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                return ORIENTATION_ROTATE_90;
+            case 180:
+                return ORIENTATION_ROTATE_180;
+            case 270:
+                return ORIENTATION_ROTATE_270;
+            default:
+                return ORIENTATION_NORMAL;
+        }
+    }
+
+    // Big endian TIFF with a single IFD holding only the orientation tag
+    private static byte[] buildApp1(int orientation) {
+        byte[] tiff = {
+                'M', 'M', 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08,       // Header, IFD0 at offset 8
+                0x00, 0x01,                                         // One entry
+                (byte) (TAG_ORIENTATION >> 8), (byte) TAG_ORIENTATION,
+                0x00, TYPE_SHORT, 0x00, 0x00, 0x00, 0x01,           // SHORT, count 1
+                0x00, (byte) orientation, 0x00, 0x00,               // Value, left aligned
+                0x00, 0x00, 0x00, 0x00                              // No next IFD
+        };
+        int length = 2 + EXIF_HEADER.length + tiff.length;
+        byte[] segment = new byte[2 + length];
+        segment[0] = (byte) MARKER_PREFIX;
+        segment[1] = (byte) MARKER_APP1;
+        segment[2] = (byte) (length >> 8);
+        segment[3] = (byte) length;
+        System.arraycopy(EXIF_HEADER, 0, segment, 4, EXIF_HEADER.length);
+        System.arraycopy(tiff, 0, segment, 4 + EXIF_HEADER.length, tiff.length);
+        return segment;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int first = readShort(data, offset, littleEndian);
+        int second = readShort(data, offset + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/*
+ * Runs a callback once per display frame until it asks to stop. Frames are vsync aligned through
+ * Choreographer on Jelly Bean and later, and approximated with a 60 Hz handler loop before that.
+ */
+abstract class FrameScheduler {
+
+    interface Callback {
+        /**
+         * @param frameTimeNanos Frame time on the {@link System#nanoTime()} time base
+         * @return True to be called again on the next frame
+         */
+        boolean doFrame(long frameTimeNanos);
+    }
+
+    protected final Callback callback;
+    private boolean running;
+
+    static FrameScheduler create(Callback callback) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new ChoreographerScheduler(callback);
+        } else {
+            return new HandlerScheduler(callback);
+        }
+    }
+
+    private FrameScheduler(Callback callback) {
+        this.callback = callback;
+    }
+
+    // Schedules the next frame, a no-op if one is already pending
+    void start() {
+        if (!running) {
+            running = true;
+            postFrame();
+        }
+    }
+
+    void stop() {
+        if (running) {
+            running = false;
+            cancelFrame();
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    protected void onFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (callback.doFrame(frameTimeNanos) && running) {
+            postFrame();
+        } else {
+            running = false;
+        }
+    }
+
+    protected abstract void postFrame();
+
+    protected abstract void cancelFrame();
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerScheduler extends FrameScheduler
+            implements Choreographer.FrameCallback {
+
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        ChoreographerScheduler(Callback callback) {
+            super(callback);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame(frameTimeNanos);
+        }
+
+        @Override
+        protected void postFrame() {
+            choreographer.postFrameCallback(this);
+        }
+
+        @Override
+        protected void cancelFrame() {
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    private static class HandlerScheduler extends FrameScheduler implements Runnable {
+
+        private static final long FRAME_MS = 16;
+
+        private final Handler handler = new Handler();
+        private long lastFrameMs;
+
+        HandlerScheduler(Callback callback) {
+            super(callback);
+        }
+
+        @Override
+        public void run() {
+            lastFrameMs = SystemClock.uptimeMillis();
+            onFrame(System.nanoTime());
+        }
+
+        @Override
+        protected void postFrame() {
+            long delay = Math.max(0, lastFrameMs + FRAME_MS - SystemClock.uptimeMillis());
+            handler.postDelayed(this, delay);
+        }
+
+        @Override
+        protected void cancelFrame() {
+            handler.removeCallbacks(this);
+        }
+    }
+
+}
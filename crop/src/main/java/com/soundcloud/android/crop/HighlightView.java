@@ -16,7 +16,6 @@
 
 package com.soundcloud.android.crop;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
@@ -26,8 +25,6 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Region;
-import android.os.Build;
 import android.util.TypedValue;
 import android.view.View;
 
@@ -56,10 +53,23 @@ class HighlightView {
     enum HandleMode { Changing, Always, Never }
 
     RectF cropRect; // Image space
-    Rect drawRect; // Screen space
+    final Rect drawRect = new Rect(); // Screen space
     Matrix matrix;
     private RectF imageRect; // Image space
 
+    // Preallocated so that drawing and dragging don't create garbage
+    private final Path outlinePath = new Path();
+    private final RectF outlineRect = new RectF();
+    private final Rect viewDrawingRect = new Rect();
+    // Dimmed area around drawRect, recomputed only when drawRect or the view bounds change
+    private final Rect[] outsideRects = { new Rect(), new Rect(), new Rect(), new Rect() };
+    private final Rect outsideDrawRect = new Rect();
+    private final Rect outsideViewRect = new Rect();
+    private final Rect layoutRect = new Rect();
+    private final RectF layoutRectF = new RectF();
+    private final Rect invalidateRect = new Rect();
+    private final RectF growRect = new RectF();
+
     private final Paint outsidePaint = new Paint();
     private final Paint outlinePaint = new Paint();
     private final Paint handlePaint = new Paint();
@@ -76,6 +86,7 @@ class HighlightView {
     private float handleRadius;
     private float outlineWidth;
     private boolean isFocused;
+    private boolean isUserModified;
 
     public HighlightView(View context) {
         viewContext = context;
@@ -105,7 +116,7 @@ class HighlightView {
         this.maintainAspectRatio = maintainAspectRatio;
 
         initialAspectRatio = this.cropRect.width() / this.cropRect.height();
-        drawRect = computeLayout();
+        computeLayout(drawRect);
 
         outsidePaint.setARGB(125, 50, 50, 50);
         outlinePaint.setStyle(Paint.Style.STROKE);
@@ -125,28 +136,17 @@ class HighlightView {
     }
 
     protected void draw(Canvas canvas) {
-        canvas.save();
-        Path path = new Path();
         outlinePaint.setStrokeWidth(outlineWidth);
         if (!hasFocus()) {
             outlinePaint.setColor(Color.BLACK);
             canvas.drawRect(drawRect, outlinePaint);
         } else {
-            Rect viewDrawingRect = new Rect();
             viewContext.getDrawingRect(viewDrawingRect);
-
-            path.addRect(new RectF(drawRect), Path.Direction.CW);
+            updateOutside();
             outlinePaint.setColor(highlightColor);
 
-            if (isClipPathSupported(canvas)) {
-                canvas.clipPath(path, Region.Op.DIFFERENCE);
-                canvas.drawRect(viewDrawingRect, outsidePaint);
-            } else {
-                drawOutsideFallback(canvas);
-            }
-
-            canvas.restore();
-            canvas.drawPath(path, outlinePaint);
+            drawOutside(canvas);
+            canvas.drawPath(outlinePath, outlinePaint);
 
             if (showThirds) {
                 drawThirds(canvas);
@@ -163,30 +163,36 @@ class HighlightView {
         }
     }
 
-    /*
-     * Fall back to naive method for darkening outside crop area
-     */
-    private void drawOutsideFallback(Canvas canvas) {
-        canvas.drawRect(0, 0, canvas.getWidth(), drawRect.top, outsidePaint);
-        canvas.drawRect(0, drawRect.bottom, canvas.getWidth(), canvas.getHeight(), outsidePaint);
-        canvas.drawRect(0, drawRect.top, drawRect.left, drawRect.bottom, outsidePaint);
-        canvas.drawRect(drawRect.right, drawRect.top, canvas.getWidth(), drawRect.bottom, outsidePaint);
+    // Rebuild the outline path and the dimmed rects only when drawRect or the view bounds have
+    // changed since they were last built
+    private void updateOutside() {
+        if (outsideDrawRect.equals(drawRect) && outsideViewRect.equals(viewDrawingRect)
+                && !outlinePath.isEmpty()) {
+            return;
+        }
+        outsideDrawRect.set(drawRect);
+        outsideViewRect.set(viewDrawingRect);
+
+        outlineRect.set(drawRect);
+        outlinePath.reset();
+        outlinePath.addRect(outlineRect, Path.Direction.CW);
+
+        Rect view = viewDrawingRect;
+        outsideRects[0].set(view.left, view.top, view.right, drawRect.top);
+        outsideRects[1].set(view.left, drawRect.bottom, view.right, view.bottom);
+        outsideRects[2].set(view.left, drawRect.top, drawRect.left, drawRect.bottom);
+        outsideRects[3].set(drawRect.right, drawRect.top, view.right, drawRect.bottom);
     }
 
     /*
-     * Clip path is broken, unreliable or not supported on:
-     * - JellyBean MR1
-     * - ICS & ICS MR1 with hardware acceleration turned on
+     * Darken outside crop area with four plain rects, which unlike a difference clip path
+     * works everywhere and only touches pixels inside the invalidated region
      */
-    @SuppressLint("NewApi")
-    private boolean isClipPathSupported(Canvas canvas) {
-        if (Build.VERSION.SDK_INT == Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            return false;
-        } else if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-            || Build.VERSION.SDK_INT > Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
-            return true;
-        } else {
-            return !canvas.isHardwareAccelerated();
+    private void drawOutside(Canvas canvas) {
+        for (Rect rect : outsideRects) {
+            if (!rect.isEmpty()) {
+                canvas.drawRect(rect, outsidePaint);
+            }
         }
     }
 
@@ -217,19 +223,20 @@ class HighlightView {
 
     private void drawCircle(Canvas canvas) {
         outlinePaint.setStrokeWidth(1);
-        canvas.drawOval(new RectF(drawRect), outlinePaint);
+        canvas.drawOval(outlineRect, outlinePaint);
     }
 
     public void setMode(ModifyMode mode) {
         if (mode != modifyMode) {
             modifyMode = mode;
-            viewContext.invalidate();
+            // Only the handles around the crop rectangle appear or disappear
+            invalidateAround(drawRect);
         }
     }
 
     // Determines which edges are hit by touching at (x, y)
     public int getHit(float x, float y) {
-        Rect r = computeLayout();
+        Rect r = computeLayout(layoutRect);
         final float hysteresis = 20F;
         int retval = GROW_NONE;
 
@@ -264,7 +271,8 @@ class HighlightView {
     // Handles motion (dx, dy) in screen space.
     // The "edge" parameter specifies which edges the user is dragging.
     void handleMotion(int edge, float dx, float dy) {
-        Rect r = computeLayout();
+        isUserModified = true;
+        Rect r = computeLayout(layoutRect);
         if (edge == MOVE) {
             // Convert to image space before sending to moveBy()
             moveBy(dx * (cropRect.width() / r.width()),
@@ -288,7 +296,7 @@ class HighlightView {
 
     // Grows the cropping rectangle by (dx, dy) in image space
     void moveBy(float dx, float dy) {
-        Rect invalRect = new Rect(drawRect);
+        invalidateRect.set(drawRect);
 
         cropRect.offset(dx, dy);
 
@@ -301,14 +309,13 @@ class HighlightView {
                 Math.min(0, imageRect.right  - cropRect.right),
                 Math.min(0, imageRect.bottom - cropRect.bottom));
 
-        drawRect = computeLayout();
-        invalRect.union(drawRect);
-        invalRect.inset(-(int) handleRadius, -(int) handleRadius);
-        viewContext.invalidate(invalRect);
+        computeLayout(drawRect);
+        invalidateAround(invalidateRect);
     }
 
     // Grows the cropping rectangle by (dx, dy) in image space.
     void growBy(float dx, float dy) {
+        invalidateRect.set(drawRect);
         if (maintainAspectRatio) {
             if (dx != 0) {
                 dy = dx / initialAspectRatio;
@@ -320,7 +327,8 @@ class HighlightView {
         // Don't let the cropping rectangle grow too fast.
         // Grow at most half of the difference between the image rectangle and
         // the cropping rectangle.
-        RectF r = new RectF(cropRect);
+        RectF r = growRect;
+        r.set(cropRect);
         if (dx > 0F && r.width() + 2 * dx > imageRect.width()) {
             dx = (imageRect.width() - r.width()) / 2F;
             if (maintainAspectRatio) {
@@ -361,8 +369,20 @@ class HighlightView {
         }
 
         cropRect.set(r);
-        drawRect = computeLayout();
-        viewContext.invalidate();
+        computeLayout(drawRect);
+        invalidateAround(invalidateRect);
+    }
+
+    // Invalidates the union of the previous and current drawRect, including handles and outline
+    private void invalidateAround(Rect previous) {
+        Rect invalRect = invalidateRect;
+        if (invalRect != previous) {
+            invalRect.set(previous);
+        }
+        invalRect.union(drawRect);
+        int inset = (int) Math.ceil(handleRadius + outlineWidth);
+        invalRect.inset(-inset, -inset);
+        viewContext.invalidate(invalRect);
     }
 
     // Returns the cropping rectangle in image space with specified scale
@@ -372,16 +392,41 @@ class HighlightView {
     }
 
     // Maps the cropping rectangle from image space to screen space
-    private Rect computeLayout() {
-        RectF r = new RectF(cropRect.left, cropRect.top,
-                            cropRect.right, cropRect.bottom);
-        matrix.mapRect(r);
-        return new Rect(Math.round(r.left), Math.round(r.top),
-                        Math.round(r.right), Math.round(r.bottom));
+    private Rect computeLayout(Rect out) {
+        RectF r = layoutRectF;
+        matrix.mapRect(r, cropRect);
+        out.set(Math.round(r.left), Math.round(r.top),
+                Math.round(r.right), Math.round(r.bottom));
+        return out;
     }
 
     public void invalidate() {
-        drawRect = computeLayout();
+        computeLayout(drawRect);
+    }
+
+    // Replaces the crop rectangle, in image space, e.g. when a better default becomes known
+    public void setCropRect(RectF rect) {
+        cropRect.set(rect);
+        computeLayout(drawRect);
+        viewContext.invalidate();
+    }
+
+    // Keeps the crop on the same part of the image when it is replaced by a version scaled by
+    // the given factor, e.g. a full preview replacing a thumbnail
+    public void rescale(float scale, Matrix m) {
+        imageRect.set(imageRect.left * scale, imageRect.top * scale,
+                imageRect.right * scale, imageRect.bottom * scale);
+        cropRect.set(cropRect.left * scale, cropRect.top * scale,
+                cropRect.right * scale, cropRect.bottom * scale);
+        cropRect.intersect(imageRect);
+        matrix.set(m);
+        computeLayout(drawRect);
+        viewContext.invalidate();
+    }
+
+    // Whether the user has moved or resized the crop rectangle
+    public boolean isUserModified() {
+        return isUserModified;
     }
 
     public boolean hasFocus() {
@@ -389,7 +434,11 @@ class HighlightView {
     }
 
     public void setFocus(boolean isFocused) {
-        this.isFocused = isFocused;
+        if (this.isFocused != isFocused) {
+            this.isFocused = isFocused;
+            // The dimmed overlay covers the whole view, so it needs a full redraw
+            viewContext.invalidate();
+        }
     }
 
 }
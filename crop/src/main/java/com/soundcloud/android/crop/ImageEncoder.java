@@ -0,0 +1,96 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/*
+ * Compresses cropped bitmaps, optionally searching for the highest quality within a size budget.
+ */
+class ImageEncoder {
+
+    static final int DEFAULT_QUALITY = 90;
+
+    private static final int MIN_QUALITY = 10;
+    private static final int MAX_SEARCH_STEPS = 6;
+
+    // Encoders are pooled for their buffers, unless a buffer grew too large to keep around
+    private static final int POOL_SIZE = 4;
+    private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+    private static final ArrayDeque<ImageEncoder> pool = new ArrayDeque<ImageEncoder>(POOL_SIZE);
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private int largestOutput;
+
+    static ImageEncoder obtain() {
+        synchronized (pool) {
+            ImageEncoder encoder = pool.poll();
+            return encoder != null ? encoder : new ImageEncoder();
+        }
+    }
+
+    void recycle() {
+        if (largestOutput > MAX_POOLED_BUFFER) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < POOL_SIZE) {
+                pool.push(this);
+            }
+        }
+    }
+
+    static void trimPool() {
+        synchronized (pool) {
+            pool.clear();
+        }
+    }
+
+    /**
+     * Encode bitmap with the given format
+     *
+     * @param quality  Quality for lossy formats, and the upper bound of the search
+     * @param maxBytes Target size in bytes, or 0 to encode once at the given quality
+     * @return Encoded image, the smallest attempt if nothing fits within maxBytes
+     */
+    byte[] encode(Bitmap bitmap, Crop.Format format, int quality, int maxBytes) {
+        if (format.lossless) {
+            return compress(bitmap, format, 100);
+        }
+        quality = Math.max(MIN_QUALITY, Math.min(100, quality));
+
+        byte[] best = compress(bitmap, format, quality);
+        if (maxBytes <= 0 || best.length <= maxBytes) {
+            return best;
+        }
+
+        // Bounded binary search for the highest quality that fits
+        byte[] smallest = best;
+        best = null;
+        int low = MIN_QUALITY;
+        int high = quality - 1;
+        for (int step = 0; step < MAX_SEARCH_STEPS && low <= high; step++) {
+            int mid = (low + high) >>> 1;
+            byte[] attempt = compress(bitmap, format, mid);
+            if (attempt.length <= maxBytes) {
+                best = attempt;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+            if (attempt.length < smallest.length) {
+                smallest = attempt;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    private byte[] compress(Bitmap bitmap, Crop.Format format, int quality) {
+        buffer.reset();
+        bitmap.compress(format.compressFormat, quality, buffer);
+        largestOutput = Math.max(largestOutput, buffer.size());
+        return buffer.toByteArray();
+    }
+
+}
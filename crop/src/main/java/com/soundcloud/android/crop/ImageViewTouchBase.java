@@ -21,10 +21,10 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.KeyEvent;
 import android.widget.ImageView;
+import android.widget.OverScroller;
 
 /*
  * Modified from original in AOSP.
@@ -53,6 +53,18 @@ abstract class ImageViewTouchBase extends ImageView {
     // of the base matrix and the supplementary matrix.
     private final Matrix displayMatrix = new Matrix();
 
+    // Base matrix without the bitmap rotation, concatenated with the
+    // supplementary matrix. Used to map crop rectangles to the screen.
+    private final Matrix unrotatedMatrix = new Matrix();
+
+    // Bumped whenever baseMatrix, suppMatrix or the displayed bitmap change,
+    // so the derived matrices above are only recomputed when stale.
+    private int matrixVersion;
+    private int displayMatrixVersion = -1;
+    private int unrotatedMatrixVersion = -1;
+
+    private final Matrix tempMatrix = new Matrix();
+
     // Temporary buffer used for getting the values out of a matrix.
     private final float[] matrixValues = new float[9];
 
@@ -66,7 +78,26 @@ abstract class ImageViewTouchBase extends ImageView {
 
     private Runnable onLayoutRunnable;
 
-    protected Handler handler = new Handler();
+    // Zoom animation and pan fling, advanced once per display frame
+    private final FrameScheduler frameScheduler = FrameScheduler.create(new FrameScheduler.Callback() {
+        public boolean doFrame(long frameTimeNanos) {
+            return onAnimationFrame(frameTimeNanos);
+        }
+    });
+    private boolean zoomAnimating;
+    private float zoomStartScale;
+    private float zoomTargetScale;
+    private float zoomCenterX;
+    private float zoomCenterY;
+    private long zoomStartNanos;
+    private long zoomDurationNanos;
+
+    private OverScroller flingScroller;
+    private boolean flinging;
+    private int flingLastX;
+    private int flingLastY;
+    private final RectF flingBounds = new RectF();
+    private final RectF centerBounds = new RectF();
 
     // ImageViewTouchBase will pass a Bitmap to the Recycler if it has finished
     // its use of that Bitmap
@@ -107,6 +138,7 @@ abstract class ImageViewTouchBase extends ImageView {
         }
         if (bitmapDisplayed.getBitmap() != null) {
             getProperBaseMatrix(bitmapDisplayed, baseMatrix, true);
+            matrixChanged();
             setImageMatrix(getImageViewMatrix());
         }
     }
@@ -155,9 +187,16 @@ abstract class ImageViewTouchBase extends ImageView {
     }
 
     public void clear() {
+        stopAnimation();
         setImageBitmapResetBase(null, true);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopAnimation();
+    }
+
 
     // This function changes bitmap, reset base matrix according to the size
     // of the bitmap, and optionally reset the supplementary matrix
@@ -166,12 +205,22 @@ abstract class ImageViewTouchBase extends ImageView {
     }
 
     public void setImageRotateBitmapResetBase(final RotateBitmap bitmap, final boolean resetSupp) {
+        setImageRotateBitmapResetBase(bitmap, resetSupp, null);
+    }
+
+    // As above, running onReady on the UI thread once the bitmap is laid out: immediately if the
+    // view already has its size, otherwise straight after the first layout pass
+    public void setImageRotateBitmapResetBase(final RotateBitmap bitmap, final boolean resetSupp,
+                                              final Runnable onReady) {
+        if (resetSupp) {
+            stopAnimation();
+        }
         final int viewWidth = getWidth();
 
         if (viewWidth <= 0)  {
             onLayoutRunnable = new Runnable() {
                 public void run() {
-                    setImageRotateBitmapResetBase(bitmap, resetSupp);
+                    setImageRotateBitmapResetBase(bitmap, resetSupp, onReady);
                 }
             };
             return;
@@ -188,8 +237,13 @@ abstract class ImageViewTouchBase extends ImageView {
         if (resetSupp) {
             suppMatrix.reset();
         }
+        matrixChanged();
         setImageMatrix(getImageViewMatrix());
         maxZoom = calculateMaxZoom();
+
+        if (onReady != null) {
+            onReady.run();
+        }
     }
 
     // Center as much as possible in one or both axis.  Centering is defined as follows:
@@ -202,7 +256,8 @@ abstract class ImageViewTouchBase extends ImageView {
         }
         Matrix m = getImageViewMatrix();
 
-        RectF rect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        RectF rect = centerBounds;
+        rect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
         m.mapRect(rect);
 
         float height = rect.height();
@@ -280,20 +335,31 @@ abstract class ImageViewTouchBase extends ImageView {
         matrix.postTranslate((viewWidth  - w * scale) / 2F, (viewHeight - h * scale) / 2F);
     }
 
+    // Must be called after any change to baseMatrix, suppMatrix or the displayed bitmap
+    protected void matrixChanged() {
+        matrixVersion++;
+    }
+
     // Combine the base matrix and the supp matrix to make the final matrix
     protected Matrix getImageViewMatrix() {
-        // The final matrix is computed as the concatentation of the base matrix
-        // and the supplementary matrix
-        displayMatrix.set(baseMatrix);
-        displayMatrix.postConcat(suppMatrix);
+        if (displayMatrixVersion != matrixVersion) {
+            // The final matrix is computed as the concatentation of the base matrix
+            // and the supplementary matrix
+            displayMatrix.set(baseMatrix);
+            displayMatrix.postConcat(suppMatrix);
+            displayMatrixVersion = matrixVersion;
+        }
         return displayMatrix;
     }
 
-    public Matrix getUnrotatedMatrix(){
-        Matrix unrotated = new Matrix();
-        getProperBaseMatrix(bitmapDisplayed, unrotated, false);
-        unrotated.postConcat(suppMatrix);
-        return unrotated;
+    // Returns a shared instance, callers must copy it rather than modify it
+    public Matrix getUnrotatedMatrix() {
+        if (unrotatedMatrixVersion != matrixVersion) {
+            getProperBaseMatrix(bitmapDisplayed, unrotatedMatrix, false);
+            unrotatedMatrix.postConcat(suppMatrix);
+            unrotatedMatrixVersion = matrixVersion;
+        }
+        return unrotatedMatrix;
     }
 
     protected float calculateMaxZoom() {
@@ -315,28 +381,100 @@ abstract class ImageViewTouchBase extends ImageView {
         float deltaScale = scale / oldScale;
 
         suppMatrix.postScale(deltaScale, deltaScale, centerX, centerY);
+        matrixChanged();
         setImageMatrix(getImageViewMatrix());
         center();
     }
 
-    protected void zoomTo(final float scale, final float centerX,
-                          final float centerY, final float durationMs) {
-        final float incrementPerMs = (scale - getScale()) / durationMs;
-        final float oldScale = getScale();
-        final long startTime = System.currentTimeMillis();
+    protected void zoomTo(float scale, float centerX, float centerY, float durationMs) {
+        zoomStartScale = getScale();
+        zoomTargetScale = scale;
+        zoomCenterX = centerX;
+        zoomCenterY = centerY;
+        zoomStartNanos = System.nanoTime();
+        zoomDurationNanos = (long) (durationMs * 1000000L);
+        zoomAnimating = true;
+        frameScheduler.start();
+    }
+
+    // Fling the image with the given velocity in pixels per second, within the pannable range
+    protected void fling(float velocityX, float velocityY) {
+        final Bitmap bitmap = bitmapDisplayed.getBitmap();
+        if (bitmap == null) {
+            return;
+        }
+        RectF rect = flingBounds;
+        rect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        getImageViewMatrix().mapRect(rect);
+
+        int minX = 0, maxX = 0, minY = 0, maxY = 0;
+        if (rect.width() > getWidth()) {
+            minX = Math.round(Math.min(0, getWidth() - rect.right));
+            maxX = Math.round(Math.max(0, -rect.left));
+        }
+        if (rect.height() > getHeight()) {
+            minY = Math.round(Math.min(0, getHeight() - rect.bottom));
+            maxY = Math.round(Math.max(0, -rect.top));
+        }
+        if (minX == maxX && minY == maxY) {
+            return;
+        }
+
+        if (flingScroller == null) {
+            flingScroller = new OverScroller(getContext());
+        }
+        flingScroller.fling(0, 0, (int) velocityX, (int) velocityY, minX, maxX, minY, maxY);
+        flingLastX = 0;
+        flingLastY = 0;
+        flinging = true;
+        frameScheduler.start();
+    }
+
+    protected void stopAnimation() {
+        zoomAnimating = false;
+        stopFling();
+        frameScheduler.stop();
+    }
 
-        handler.post(new Runnable() {
-            public void run() {
-                long now = System.currentTimeMillis();
-                float currentMs = Math.min(durationMs, now - startTime);
-                float target = oldScale + (incrementPerMs * currentMs);
-                zoomTo(target, centerX, centerY);
+    protected void stopFling() {
+        if (flinging) {
+            flinging = false;
+            flingScroller.forceFinished(true);
+        }
+    }
 
-                if (currentMs < durationMs) {
-                    handler.post(this);
-                }
+    protected boolean isAnimating() {
+        return frameScheduler.isRunning();
+    }
+
+    // Ask for onAnimationFrame to be called on the next display frame
+    protected void requestAnimationFrame() {
+        frameScheduler.start();
+    }
+
+    // One matrix update per frame for whatever animations are running,
+    // returns true while more frames are needed
+    protected boolean onAnimationFrame(long frameTimeNanos) {
+        if (zoomAnimating) {
+            long elapsed = Math.max(0, frameTimeNanos - zoomStartNanos);
+            float fraction = zoomDurationNanos > 0 ? Math.min(1F, (float) elapsed / zoomDurationNanos) : 1F;
+            zoomTo(zoomStartScale + (zoomTargetScale - zoomStartScale) * fraction, zoomCenterX, zoomCenterY);
+            if (fraction >= 1F) {
+                zoomAnimating = false;
             }
-        });
+        }
+        if (flinging) {
+            if (flingScroller.computeScrollOffset()) {
+                int x = flingScroller.getCurrX();
+                int y = flingScroller.getCurrY();
+                panBy(x - flingLastX, y - flingLastY);
+                flingLastX = x;
+                flingLastY = y;
+            } else {
+                flinging = false;
+            }
+        }
+        return zoomAnimating || flinging;
     }
 
     protected void zoomTo(float scale) {
@@ -365,6 +503,7 @@ abstract class ImageViewTouchBase extends ImageView {
         float cy = getHeight() / 2F;
 
         suppMatrix.postScale(rate, rate, cx, cy);
+        matrixChanged();
         setImageMatrix(getImageViewMatrix());
     }
 
@@ -377,7 +516,8 @@ abstract class ImageViewTouchBase extends ImageView {
         float cy = getHeight() / 2F;
 
         // Zoom out to at most 1x
-        Matrix tmp = new Matrix(suppMatrix);
+        Matrix tmp = tempMatrix;
+        tmp.set(suppMatrix);
         tmp.postScale(1F / rate, 1F / rate, cx, cy);
 
         if (getScale(tmp) < 1F) {
@@ -385,12 +525,14 @@ abstract class ImageViewTouchBase extends ImageView {
         } else {
             suppMatrix.postScale(1F / rate, 1F / rate, cx, cy);
         }
+        matrixChanged();
         setImageMatrix(getImageViewMatrix());
         center();
     }
 
     protected void postTranslate(float dx, float dy) {
         suppMatrix.postTranslate(dx, dy);
+        matrixChanged();
     }
 
     protected void panBy(float dx, float dy) {
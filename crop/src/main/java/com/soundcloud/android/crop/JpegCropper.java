@@ -0,0 +1,654 @@
+package com.soundcloud.android.crop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Crops baseline JPEG data without decoding it to pixels, like jpegtran -crop: the coded blocks
+ * inside the crop are copied with their coefficients untouched and only the Huffman coding is
+ * redone, so the image is not recompressed. The crop has to start on an MCU boundary.
+ */
+class JpegCropper {
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP15 = 0xEF;
+
+    private static final int BLOCK_SIZE = 8;
+    private static final int MAX_TABLES = 4;
+    private static final int LOOKAHEAD_BITS = 9;
+
+    private final byte[] jpeg;
+
+    // Segments copied to the output as they are: APPn other than Exif and XMP, and DQT
+    private final ByteArrayOutputStream tables = new ByteArrayOutputStream();
+    private byte[] frameHeader;
+    private byte[] scanHeader;
+    private int scanStart;
+
+    private int width;
+    private int height;
+    private int restartInterval;
+    private final HuffmanTable[] dcTables = new HuffmanTable[MAX_TABLES];
+    private final HuffmanTable[] acTables = new HuffmanTable[MAX_TABLES];
+
+    // Scan components in scan order
+    private int[] blocksWide;
+    private int[] blocksHigh;
+    private int[] dcSelectors;
+    private int[] acSelectors;
+    private int mcuWidth;
+    private int mcuHeight;
+    private int mcusPerLine;
+
+    // Entropy decoder state
+    private int pos;
+    private long bitBuffer;
+    private int bitCount;
+    private boolean hitMarker;
+
+    // Entropy encoder state, null while gathering symbol statistics
+    private ByteArrayOutputStream out;
+    private long outBuffer;
+    private int outCount;
+    private int[][] dcFrequencies;
+    private int[][] acFrequencies;
+    private int[][] dcCodes;
+    private int[][] dcSizes;
+    private int[][] acCodes;
+    private int[][] acSizes;
+
+    private JpegCropper(byte[] jpeg) {
+        this.jpeg = jpeg;
+    }
+
+    /**
+     * @return Cropper for baseline JPEG data, null for anything else, e.g. progressive JPEG
+     */
+    static JpegCropper parse(byte[] jpeg) {
+        JpegCropper cropper = new JpegCropper(jpeg);
+        try {
+            return cropper.readHeaders() ? cropper : null;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null; // Truncated
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Move the left and top edges of a region out to the block grid, as jpegtran -crop does. The
+     * region grows by less than one block, at most 15 pixels.
+     *
+     * @param region Left, top, right and bottom in source coordinates, updated in place
+     */
+    void snap(int[] region) {
+        region[0] -= region[0] % mcuWidth;
+        region[1] -= region[1] % mcuHeight;
+    }
+
+    /**
+     * @return Whether the region can be cut without decoding, in source coordinates
+     */
+    boolean canCrop(int left, int top, int right, int bottom) {
+        return left >= 0 && top >= 0 && right <= width && bottom <= height && left < right && top < bottom
+                && left % mcuWidth == 0 && top % mcuHeight == 0;
+    }
+
+    /**
+     * Cut a region accepted by {@link #canCrop(int, int, int, int)}
+     *
+     * @return Baseline JPEG data of the region, without Exif
+     * @throws IOException If the entropy coded data is corrupt
+     */
+    byte[] crop(int left, int top, int right, int bottom) throws IOException {
+        int firstColumn = left / mcuWidth;
+        int firstRow = top / mcuHeight;
+        int columns = (right - left + mcuWidth - 1) / mcuWidth;
+        int rows = (bottom - top + mcuHeight - 1) / mcuHeight;
+        try {
+            // The first pass only gathers statistics for Huffman tables that fit the crop, which
+            // differ from the source's as the DC predictions at the edges of the crop change
+            dcFrequencies = new int[MAX_TABLES][257];
+            acFrequencies = new int[MAX_TABLES][257];
+            copyBlocks(firstColumn, firstRow, columns, rows);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(jpeg.length);
+            result.write(MARKER_PREFIX);
+            result.write(MARKER_SOI);
+            tables.writeTo(result);
+            writeFrameHeader(result, right - left, bottom - top);
+            writeHuffmanTables(result);
+            result.write(scanHeader);
+
+            out = result;
+            copyBlocks(firstColumn, firstRow, columns, rows);
+            flushBits();
+            result.write(MARKER_PREFIX);
+            result.write(MARKER_EOI);
+            return result.toByteArray();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt JPEG data", e);
+        } finally {
+            out = null;
+        }
+    }
+
+    private boolean readHeaders() {
+        if ((jpeg[0] & 0xFF) != MARKER_PREFIX || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            return false;
+        }
+        int offset = 2;
+        int[] componentIds = null;
+        int[] horizontal = null;
+        int[] vertical = null;
+        while (true) {
+            if ((jpeg[offset] & 0xFF) != MARKER_PREFIX) {
+                return false;
+            }
+            int marker = jpeg[offset + 1] & 0xFF;
+            offset += 2;
+            if (marker == MARKER_PREFIX) {
+                offset--; // Fill byte
+                continue;
+            }
+            if (marker == MARKER_EOI || (marker >= MARKER_RST0 && marker <= MARKER_RST7)) {
+                return false;
+            }
+            int length = readShort(offset);
+            int payload = offset + 2;
+            int end = offset + length;
+            if (length < 2 || end > jpeg.length) {
+                return false;
+            }
+            if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+                if ((jpeg[payload] & 0xFF) != 8) {
+                    return false; // 12 bit precision
+                }
+                height = readShort(payload + 1);
+                width = readShort(payload + 3);
+                int count = jpeg[payload + 5] & 0xFF;
+                if (width == 0 || height == 0 || count == 0) {
+                    return false;
+                }
+                componentIds = new int[count];
+                horizontal = new int[count];
+                vertical = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int component = payload + 6 + i * 3;
+                    componentIds[i] = jpeg[component] & 0xFF;
+                    horizontal[i] = (jpeg[component + 1] & 0xFF) >> 4;
+                    vertical[i] = jpeg[component + 1] & 0x0F;
+                    if (horizontal[i] < 1 || horizontal[i] > 4 || vertical[i] < 1 || vertical[i] > 4) {
+                        return false;
+                    }
+                }
+                frameHeader = Arrays.copyOfRange(jpeg, offset - 2, end);
+            } else if ((marker & 0xF0) == 0xC0 && marker != MARKER_DHT && marker != 0xC8 && marker != 0xCC) {
+                return false; // Progressive, lossless, hierarchical or arithmetic coded
+            } else if (marker == MARKER_DHT) {
+                if (!readHuffmanTables(payload, end)) {
+                    return false;
+                }
+            } else if (marker == MARKER_DRI) {
+                restartInterval = readShort(payload);
+            } else if (marker == MARKER_DQT || (marker >= MARKER_APP0 && marker <= MARKER_APP15
+                    && marker != MARKER_APP1)) {
+                // Exif and XMP are left out, they describe the uncropped image and its orientation
+                tables.write(jpeg, offset - 2, end - offset + 2);
+            } else if (marker == MARKER_SOS) {
+                if (componentIds == null) {
+                    return false;
+                }
+                scanHeader = Arrays.copyOfRange(jpeg, offset - 2, end);
+                scanStart = end;
+                return readScanHeader(payload, componentIds, horizontal, vertical);
+            }
+            offset = end;
+        }
+    }
+
+    private boolean readHuffmanTables(int offset, int end) {
+        while (offset < end) {
+            int tableClass = (jpeg[offset] & 0xFF) >> 4;
+            int id = jpeg[offset] & 0x0F;
+            if (tableClass > 1 || id >= MAX_TABLES) {
+                return false;
+            }
+            int[] counts = new int[17];
+            int total = 0;
+            for (int length = 1; length <= 16; length++) {
+                counts[length] = jpeg[offset + length] & 0xFF;
+                total += counts[length];
+            }
+            if (total > 256 || offset + 17 + total > end) {
+                return false;
+            }
+            int[] symbols = new int[total];
+            for (int i = 0; i < total; i++) {
+                symbols[i] = jpeg[offset + 17 + i] & 0xFF;
+            }
+            HuffmanTable table = new HuffmanTable(counts, symbols);
+            if (tableClass == 0) {
+                dcTables[id] = table;
+            } else {
+                acTables[id] = table;
+            }
+            offset += 17 + total;
+        }
+        return true;
+    }
+
+    private boolean readScanHeader(int offset, int[] componentIds, int[] horizontal, int[] vertical) {
+        int count = jpeg[offset] & 0xFF;
+        // Only a single scan holding every component, as baseline encoders write it
+        if (count != componentIds.length) {
+            return false;
+        }
+        int spectral = offset + 1 + count * 2;
+        if ((jpeg[spectral] & 0xFF) != 0 || (jpeg[spectral + 1] & 0xFF) != 63 || jpeg[spectral + 2] != 0) {
+            return false;
+        }
+        int maxHorizontal = 1;
+        int maxVertical = 1;
+        for (int i = 0; i < componentIds.length; i++) {
+            maxHorizontal = Math.max(maxHorizontal, horizontal[i]);
+            maxVertical = Math.max(maxVertical, vertical[i]);
+        }
+        blocksWide = new int[count];
+        blocksHigh = new int[count];
+        dcSelectors = new int[count];
+        acSelectors = new int[count];
+        for (int i = 0; i < count; i++) {
+            int id = jpeg[offset + 1 + i * 2] & 0xFF;
+            int selectors = jpeg[offset + 2 + i * 2] & 0xFF;
+            int component = indexOf(componentIds, id);
+            if (component < 0) {
+                return false;
+            }
+            dcSelectors[i] = selectors >> 4;
+            acSelectors[i] = selectors & 0x0F;
+            if (dcSelectors[i] >= MAX_TABLES || acSelectors[i] >= MAX_TABLES
+                    || dcTables[dcSelectors[i]] == null || acTables[acSelectors[i]] == null) {
+                return false;
+            }
+            // A single component scan is not interleaved, its MCU is one block
+            blocksWide[i] = count == 1 ? 1 : horizontal[component];
+            blocksHigh[i] = count == 1 ? 1 : vertical[component];
+        }
+        mcuWidth = BLOCK_SIZE * (count == 1 ? 1 : maxHorizontal);
+        mcuHeight = BLOCK_SIZE * (count == 1 ? 1 : maxVertical);
+        mcusPerLine = (width + mcuWidth - 1) / mcuWidth;
+        return true;
+    }
+
+    // Decodes the scan down to the last row of the crop. Blocks inside the crop are counted for
+    // the Huffman tables, or written once there is an output.
+    private void copyBlocks(int firstColumn, int firstRow, int columns, int rows) throws IOException {
+        pos = scanStart;
+        bitBuffer = 0;
+        bitCount = 0;
+        hitMarker = false;
+        int components = blocksWide.length;
+        int[] prediction = new int[components];
+        int[] outputPrediction = new int[components];
+        int mcu = 0;
+        for (int row = 0; row < firstRow + rows; row++) {
+            for (int column = 0; column < mcusPerLine; column++) {
+                if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                    restart();
+                    Arrays.fill(prediction, 0);
+                }
+                mcu++;
+                boolean inside = row >= firstRow && column >= firstColumn && column < firstColumn + columns;
+                for (int c = 0; c < components; c++) {
+                    for (int block = blocksWide[c] * blocksHigh[c]; block > 0; block--) {
+                        prediction[c] = copyBlock(c, prediction[c], inside ? outputPrediction : null);
+                    }
+                }
+            }
+        }
+    }
+
+    // Returns the block's DC coefficient, the new prediction for the component
+    private int copyBlock(int c, int prediction, int[] outputPrediction) throws IOException {
+        fillBits();
+        int size = decode(dcTables[dcSelectors[c]]);
+        int dc = prediction + (size == 0 ? 0 : extend(receive(size), size));
+        if (outputPrediction != null) {
+            writeDc(c, dc - outputPrediction[c]);
+            outputPrediction[c] = dc;
+        }
+        HuffmanTable acTable = acTables[acSelectors[c]];
+        for (int k = 1; k < 64; k++) {
+            fillBits();
+            int symbol = decode(acTable);
+            int run = symbol >> 4;
+            size = symbol & 0x0F;
+            int bits = receive(size);
+            if (outputPrediction != null) {
+                writeAc(c, symbol, bits, size);
+            }
+            if (size == 0) {
+                if (run != 15) {
+                    break; // End of block
+                }
+                run = 15; // 16 zeros, k is incremented once more by the loop
+            }
+            k += run;
+            if (k > 63) {
+                throw new IOException("Corrupt JPEG data");
+            }
+        }
+        return dc;
+    }
+
+    private void restart() throws IOException {
+        bitBuffer = 0;
+        bitCount = 0;
+        hitMarker = false;
+        while (pos + 1 < jpeg.length) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            if ((jpeg[pos] & 0xFF) == MARKER_PREFIX && marker >= MARKER_RST0 && marker <= MARKER_RST7) {
+                pos += 2;
+                return;
+            }
+            pos++;
+        }
+        throw new IOException("Missing restart marker");
+    }
+
+    private void fillBits() {
+        while (bitCount <= 56) {
+            int b = 0;
+            if (!hitMarker && pos < jpeg.length) {
+                b = jpeg[pos] & 0xFF;
+                if (b != MARKER_PREFIX) {
+                    pos++;
+                } else if (pos + 1 < jpeg.length && jpeg[pos + 1] == 0) {
+                    pos += 2; // Stuffed zero
+                } else {
+                    // Past the end of the entropy coded data, decoders read zeros from here on
+                    hitMarker = true;
+                    b = 0;
+                }
+            }
+            bitBuffer = (bitBuffer << 8) | b;
+            bitCount += 8;
+        }
+    }
+
+    private int peek(int count) {
+        return (int) (bitBuffer >>> (bitCount - count)) & ((1 << count) - 1);
+    }
+
+    private int receive(int count) {
+        if (count == 0) {
+            return 0;
+        }
+        int bits = peek(count);
+        bitCount -= count;
+        return bits;
+    }
+
+    private int decode(HuffmanTable table) throws IOException {
+        int entry = table.lookahead[peek(LOOKAHEAD_BITS)];
+        if (entry != 0) {
+            bitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        for (int length = LOOKAHEAD_BITS + 1; length <= 16; length++) {
+            int code = peek(length);
+            if (code <= table.maxCode[length]) {
+                bitCount -= length;
+                return table.symbols[table.valueOffset[length] + code - table.minCode[length]];
+            }
+        }
+        throw new IOException("Corrupt JPEG data");
+    }
+
+    private static int extend(int bits, int size) {
+        return bits < (1 << (size - 1)) ? bits - (1 << size) + 1 : bits;
+    }
+
+    private void writeDc(int c, int difference) {
+        int size = 32 - Integer.numberOfLeadingZeros(Math.abs(difference));
+        int table = dcSelectors[c];
+        if (out == null) {
+            dcFrequencies[table][size]++;
+            return;
+        }
+        writeBits(dcCodes[table][size], dcSizes[table][size]);
+        writeBits(difference < 0 ? difference - 1 : difference, size);
+    }
+
+    private void writeAc(int c, int symbol, int bits, int size) {
+        int table = acSelectors[c];
+        if (out == null) {
+            acFrequencies[table][symbol]++;
+            return;
+        }
+        writeBits(acCodes[table][symbol], acSizes[table][symbol]);
+        writeBits(bits, size);
+    }
+
+    private void writeBits(int bits, int count) {
+        outBuffer = (outBuffer << count) | (bits & ((1 << count) - 1));
+        outCount += count;
+        while (outCount >= 8) {
+            int b = (int) (outBuffer >>> (outCount - 8)) & 0xFF;
+            out.write(b);
+            if (b == MARKER_PREFIX) {
+                out.write(0);
+            }
+            outCount -= 8;
+        }
+    }
+
+    // Pads the last byte with ones
+    private void flushBits() {
+        if (outCount > 0) {
+            writeBits(0x7F, 8 - outCount);
+        }
+        outBuffer = 0;
+        outCount = 0;
+    }
+
+    private void writeFrameHeader(ByteArrayOutputStream result, int cropWidth, int cropHeight) {
+        byte[] header = frameHeader.clone();
+        header[5] = (byte) (cropHeight >> 8);
+        header[6] = (byte) cropHeight;
+        header[7] = (byte) (cropWidth >> 8);
+        header[8] = (byte) cropWidth;
+        result.write(header, 0, header.length);
+    }
+
+    private void writeHuffmanTables(ByteArrayOutputStream result) {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        dcCodes = new int[MAX_TABLES][];
+        dcSizes = new int[MAX_TABLES][];
+        acCodes = new int[MAX_TABLES][];
+        acSizes = new int[MAX_TABLES][];
+        for (int id = 0; id < MAX_TABLES; id++) {
+            if (indexOf(dcSelectors, id) >= 0) {
+                dcCodes[id] = new int[256];
+                dcSizes[id] = new int[256];
+                segment.write(id);
+                writeOptimalTable(segment, dcFrequencies[id], dcCodes[id], dcSizes[id]);
+            }
+            if (indexOf(acSelectors, id) >= 0) {
+                acCodes[id] = new int[256];
+                acSizes[id] = new int[256];
+                segment.write(0x10 | id);
+                writeOptimalTable(segment, acFrequencies[id], acCodes[id], acSizes[id]);
+            }
+        }
+        int length = segment.size() + 2;
+        result.write(MARKER_PREFIX);
+        result.write(MARKER_DHT);
+        result.write(length >> 8);
+        result.write(length);
+        result.write(segment.toByteArray(), 0, segment.size());
+    }
+
+    // Code lengths as in JPEG Annex K.2, limited to 16 bits. A reserved symbol keeps any code
+    // from being all ones.
+    private static void writeOptimalTable(ByteArrayOutputStream segment, int[] frequencies, int[] codes, int[] sizes) {
+        int[] frequency = Arrays.copyOf(frequencies, 257);
+        if (isEmpty(frequency)) {
+            frequency[0] = 1; // A table the crop never uses still needs a code
+        }
+        frequency[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+        while (true) {
+            int c1 = -1;
+            int c2 = -1;
+            long least = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (frequency[i] != 0 && frequency[i] <= least) {
+                    least = frequency[i];
+                    c1 = i;
+                }
+            }
+            least = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (frequency[i] != 0 && frequency[i] <= least && i != c1) {
+                    least = frequency[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0) {
+                break;
+            }
+            frequency[c1] += frequency[c2];
+            frequency[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] counts = new int[33];
+        for (int i = 0; i <= 256; i++) {
+            counts[codeSize[i]]++;
+        }
+        counts[0] = 0;
+        for (int length = 32; length > 16; length--) {
+            while (counts[length] > 0) {
+                int j = length - 2;
+                while (counts[j] == 0) {
+                    j--;
+                }
+                counts[length] -= 2;
+                counts[length - 1]++;
+                counts[j + 1] += 2;
+                counts[j]--;
+            }
+        }
+        int longest = 16;
+        while (counts[longest] == 0) {
+            longest--;
+        }
+        counts[longest]--; // Drop the reserved symbol
+
+        for (int length = 1; length <= 16; length++) {
+            segment.write(counts[length]);
+        }
+        int code = 0;
+        int length = 1;
+        int left = counts[1];
+        for (int size = 1; size <= 32; size++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (codeSize[symbol] != size) {
+                    continue;
+                }
+                while (left == 0) {
+                    code <<= 1;
+                    left = counts[++length];
+                }
+                segment.write(symbol);
+                codes[symbol] = code++;
+                sizes[symbol] = length;
+                left--;
+            }
+        }
+    }
+
+    private static boolean isEmpty(int[] frequencies) {
+        for (int f : frequencies) {
+            if (f != 0) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private int readShort(int offset) {
+        return ((jpeg[offset] & 0xFF) << 8) | (jpeg[offset + 1] & 0xFF);
+    }
+
+    /*
+     * Decoding side of a Huffman table, as in JPEG Annex F.2.2.3 with a lookahead for short codes
+     */
+    private static class HuffmanTable {
+
+        final int[] symbols;
+        final int[] minCode = new int[17];
+        final int[] maxCode = new int[17];
+        final int[] valueOffset = new int[17];
+        // Length << 8 | symbol, 0 for codes longer than the lookahead
+        final int[] lookahead = new int[1 << LOOKAHEAD_BITS];
+
+        HuffmanTable(int[] counts, int[] symbols) {
+            this.symbols = symbols;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k;
+                minCode[length] = code;
+                for (int i = 0; i < counts[length]; i++, k++, code++) {
+                    if (length <= LOOKAHEAD_BITS) {
+                        int shift = LOOKAHEAD_BITS - length;
+                        int entry = (length << 8) | symbols[k];
+                        Arrays.fill(lookahead, code << shift, (code + 1) << shift, entry);
+                    }
+                }
+                maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+        }
+    }
+
+}
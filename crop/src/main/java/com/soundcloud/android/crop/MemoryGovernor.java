@@ -0,0 +1,160 @@
+package com.soundcloud.android.crop;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/*
+ * Sizes bitmaps from the heap limit and the device's RAM class, so that large images are decoded
+ * at a lower resolution or in strips rather than failing with an OutOfMemoryError.
+ */
+class MemoryGovernor {
+
+    private static final long MB = 1024 * 1024;
+    private static final long SMALL_HEAP = 64 * MB;
+
+    // The preview may take this share of the heap, less on low RAM devices
+    private static final int PREVIEW_HEAP_DIVISOR = 4;
+    private static final int LOW_MEMORY_PREVIEW_HEAP_DIVISOR = 8;
+
+    // A single region decode may take this share of the free heap
+    private static final int REGION_HEAP_DIVISOR = 2;
+    private static final int MAX_STRIPS = 64;
+
+    // Regions smaller than this decode fast enough on one thread
+    private static final long PARALLEL_MIN_PIXELS = 16L * 1000 * 1000;
+    static final int MAX_DECODE_THREADS = 4;
+
+    private static MemoryGovernor instance;
+
+    final long heapLimit;
+    final int memoryClass;
+    final boolean largeHeap;
+    final boolean lowRamDevice;
+
+    private MemoryGovernor(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        largeHeap = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+        memoryClass = largeHeap ? am.getLargeMemoryClass() : am.getMemoryClass();
+        lowRamDevice = isLowRamDevice(am);
+        // Reflects the large heap already, and is what allocations actually fail against
+        heapLimit = Runtime.getRuntime().maxMemory();
+        CropMetrics.recordMemoryProfile(heapLimit, memoryClass, largeHeap, lowRamDevice);
+    }
+
+    static synchronized MemoryGovernor get(Context context) {
+        if (instance == null) {
+            instance = new MemoryGovernor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isLowRamDevice(ActivityManager am) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return am.isLowRamDevice();
+        }
+        return am.getMemoryClass() * MB <= SMALL_HEAP / 2;
+    }
+
+    boolean isConstrained() {
+        return lowRamDevice || heapLimit <= SMALL_HEAP;
+    }
+
+    /**
+     * Preview bitmaps are display only, so constrained devices get half the bytes per pixel
+     */
+    Bitmap.Config previewConfig() {
+        return isConstrained() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @param limit Largest side the view can draw
+     * @return Largest side of a preview that fits the heap budget
+     */
+    int previewMaxSize(int limit) {
+        int bytesPerPixel = previewConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
+        long budget = heapLimit / (isConstrained() ? LOW_MEMORY_PREVIEW_HEAP_DIVISOR : PREVIEW_HEAP_DIVISOR);
+        // Sized for a square image, the worst case for a given longest side
+        int maxSize = (int) Math.min(limit, Math.sqrt(budget / bytesPerPixel));
+        CropMetrics.recordPreviewDecision(maxSize, previewConfig());
+        return maxSize;
+    }
+
+    /**
+     * @return Bytes that can still be allocated before the heap limit is reached
+     */
+    static long availableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * @return Bytes a single region decode may allocate right now
+     */
+    static long regionBudget() {
+        return availableHeap() / REGION_HEAP_DIVISOR;
+    }
+
+    /**
+     * @return Factor to shrink each side of an output bitmap by so that it fits the region budget,
+     *         1 if it already fits
+     */
+    static float outputScale(long outputBytes) {
+        long budget = regionBudget();
+        if (outputBytes <= budget) {
+            return 1f;
+        }
+        return (float) Math.sqrt((double) budget / outputBytes);
+    }
+
+    /**
+     * @param decodedBytes Size of the subsampled region when decoded in one go
+     * @param outputBytes  Size of the output bitmap the strips are drawn into
+     * @return Number of horizontal strips to decode the region in, 1 to decode it whole
+     */
+    static int regionStrips(long decodedBytes, long outputBytes) {
+        long budget = regionBudget() - outputBytes;
+        if (decodedBytes <= budget) {
+            return 1;
+        }
+        if (budget <= 0) {
+            return MAX_STRIPS;
+        }
+        return (int) Math.min(MAX_STRIPS, Math.max(2, (decodedBytes + budget - 1) / budget));
+    }
+
+    /**
+     * @param sourcePixels Pixels the region covers in the source
+     * @param stripBytes   Size of one decoded strip
+     * @param outputBytes  Size of the output bitmap the strips are drawn into
+     * @return Number of threads to decode the region on, 1 to decode it on the calling thread only
+     */
+    static int regionThreads(long sourcePixels, long stripBytes, long outputBytes) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_DECODE_THREADS);
+        if (sourcePixels < PARALLEL_MIN_PIXELS || threads < 2) {
+            return 1;
+        }
+        // Every thread holds a strip and a decoder, which is counted as another strip for the
+        // index it builds of the source
+        long budget = regionBudget() - outputBytes;
+        return (int) Math.max(1, Math.min(threads, budget / (2 * Math.max(1, stripBytes))));
+    }
+
+    /**
+     * Release memory that can be rebuilt later
+     */
+    static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            ImageEncoder.trimPool();
+            PreviewCache.clear();
+            CropResult.trim();
+        }
+        CropMetrics.recordTrim(level);
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+/*
+ * Hands a preview decoded ahead of time, while the crop activity is still starting, over to it.
+ * Holds a single entry, as there is only one crop screen at a time.
+ */
+class PreviewCache {
+
+    // Forget a prefetch whose activity never came, e.g. because starting it failed
+    private static final long MAX_AGE_MS = 30 * 1000;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable expire = new Runnable() {
+        public void run() {
+            clear();
+        }
+    };
+
+    private static CropEngine.Source source;
+    private static int maxSize;
+    private static Bitmap.Config config;
+    private static Future<CropEngine.Preview> preview;
+    private static Decode decode;
+
+    private PreviewCache() {}
+
+    /**
+     * Start decoding the preview the crop activity will ask for
+     */
+    static void prefetch(Context context, Uri uri) {
+        CropEngine.Source source = CropEngine.Source.of(context, uri);
+        int maxSize = CropSession.getMaxImageSize(context);
+        Bitmap.Config config = MemoryGovernor.get(context).previewConfig();
+        Decode decode = new Decode(source, maxSize, config);
+        Future<CropEngine.Preview> preview = CropExecutor.submit(CropMetrics.JOB_PREFETCH, CropExecutor.Priority.UI, decode);
+        synchronized (PreviewCache.class) {
+            clear();
+            PreviewCache.source = source;
+            PreviewCache.maxSize = maxSize;
+            PreviewCache.config = config;
+            PreviewCache.preview = preview;
+            PreviewCache.decode = decode;
+        }
+        handler.postDelayed(expire, MAX_AGE_MS);
+    }
+
+    /**
+     * @return Running or finished decode of exactly this preview, now owned by the caller, or null
+     */
+    static synchronized Future<CropEngine.Preview> take(CropEngine.Source source, int maxSize, Bitmap.Config config) {
+        if (preview == null || !source.equals(PreviewCache.source)
+                || maxSize != PreviewCache.maxSize || config != PreviewCache.config) {
+            clear();
+            return null;
+        }
+        Future<CropEngine.Preview> taken = preview;
+        reset();
+        return taken;
+    }
+
+    /**
+     * Drop a preview nobody took
+     */
+    static synchronized void clear() {
+        if (preview != null) {
+            // A decode already running is not interrupted, it releases its bitmap once done
+            preview.cancel(false);
+            decode.drop();
+        }
+        reset();
+    }
+
+    private static void reset() {
+        handler.removeCallbacks(expire);
+        source = null;
+        config = null;
+        preview = null;
+        decode = null;
+    }
+
+    private static class Decode implements Callable<CropEngine.Preview> {
+
+        private final CropEngine.Source source;
+        private final int maxSize;
+        private final Bitmap.Config config;
+
+        // Guarded by PreviewCache.class
+        private CropEngine.Preview result;
+        private boolean dropped;
+
+        Decode(CropEngine.Source source, int maxSize, Bitmap.Config config) {
+            this.source = source;
+            this.maxSize = maxSize;
+            this.config = config;
+        }
+
+        public CropEngine.Preview call() throws Exception {
+            CropEngine.Preview preview = new CropEngine().decodePreview(source, maxSize, config);
+            synchronized (PreviewCache.class) {
+                if (dropped) {
+                    preview.getBitmap().recycle();
+                    throw new CancellationException();
+                }
+                result = preview;
+            }
+            return preview;
+        }
+
+        void drop() {
+            dropped = true;
+            if (result != null) {
+                result.getBitmap().recycle();
+                result = null;
+            }
+        }
+    }
+
+}
@@ -26,6 +26,7 @@ class RotateBitmap {
 
     private Bitmap bitmap;
     private int rotation;
+    private final Matrix rotateMatrix = new Matrix();
 
     public RotateBitmap(Bitmap bitmap, int rotation) {
         this.bitmap = bitmap;
@@ -48,9 +49,11 @@ class RotateBitmap {
         this.bitmap = bitmap;
     }
 
+    // Returns a shared instance, valid until the next call
     public Matrix getRotateMatrix() {
         // By default this is an identity matrix
-        Matrix matrix = new Matrix();
+        Matrix matrix = rotateMatrix;
+        matrix.reset();
         if (bitmap != null && rotation != 0) {
             // We want to do the rotation at origin, but since the bounding
             // rectangle will be changed after rotation, so the delta values
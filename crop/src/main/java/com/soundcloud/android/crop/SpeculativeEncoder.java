@@ -0,0 +1,124 @@
+package com.soundcloud.android.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+/*
+ * Encodes the crop in the background once the user stops editing it, so that saving an unchanged
+ * crop only has to write the result. Driven from the UI thread.
+ */
+class SpeculativeEncoder implements Runnable {
+
+    private static final int IDLE_MS = 600;
+
+    interface Host {
+        /**
+         * @return Crop to encode in full resolution coordinates, null if there is none to encode now
+         */
+        Rect getIdleCropRect();
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Host host;
+
+    private CropSession session;
+    private int exifRotation;
+    private int exifOrientation;
+    private CropEngine.Options options;
+
+    private Rect rect;
+    private Future<byte[]> result;
+    // Bumped on every change, lets a superseded job skip its encode
+    private volatile int generation;
+
+    SpeculativeEncoder(Context context, Handler handler, Host host) {
+        this.context = context;
+        this.handler = handler;
+        this.host = host;
+    }
+
+    /**
+     * Encode crops of this image from now on
+     */
+    void bind(CropSession session, int exifRotation, int exifOrientation, CropEngine.Options options) {
+        cancel();
+        this.session = session;
+        this.exifRotation = exifRotation;
+        this.exifOrientation = exifOrientation;
+        this.options = options;
+    }
+
+    void restart() {
+        cancel();
+        handler.postDelayed(this, IDLE_MS);
+    }
+
+    void cancel() {
+        generation++;
+        handler.removeCallbacks(this);
+        if (result != null) {
+            result.cancel(false);
+            result = null;
+            rect = null;
+        }
+    }
+
+    // Started on the UI thread once the crop has been idle
+    public void run() {
+        final Rect r = session != null ? host.getIdleCropRect() : null;
+        if (r == null) {
+            return;
+        }
+        // A second full resolution decode next to the preview is not worth the risk there
+        if (MemoryGovernor.get(context).isConstrained()) {
+            return;
+        }
+        final CropSession session = this.session;
+        final int exifRotation = this.exifRotation;
+        final int exifOrientation = this.exifOrientation;
+        final CropEngine.Options options = this.options;
+        final int started = generation;
+        rect = r;
+        result = CropExecutor.submit(CropMetrics.JOB_SPECULATIVE_SAVE, CropExecutor.Priority.BACKGROUND,
+                new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        byte[] lossless = session.cropLossless(r, exifRotation, options);
+                        if (lossless != null) {
+                            return lossless;
+                        }
+                        Bitmap cropped = session.decodeCrop(r, exifRotation, options);
+                        try {
+                            if (started != generation) {
+                                throw new CancellationException();
+                            }
+                            return session.encode(cropped, exifOrientation, options);
+                        } finally {
+                            cropped.recycle();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return Encode of exactly this crop, running or done, null if there is none
+     */
+    Future<byte[]> take(Rect r) {
+        Future<byte[]> encoded = r.equals(rect) ? result : null;
+        if (encoded != null) {
+            handler.removeCallbacks(this);
+            result = null;
+            rect = null;
+        } else {
+            cancel();
+        }
+        return encoded;
+    }
+
+}
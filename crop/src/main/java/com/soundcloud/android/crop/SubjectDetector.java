@@ -0,0 +1,146 @@
+package com.soundcloud.android.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.media.FaceDetector;
+
+/*
+ * Finds the likely subject of a photo on a small copy of the preview: faces if there are any,
+ * otherwise the area with the most edge energy. Used to place the default crop rectangle.
+ */
+class SubjectDetector {
+
+    private static final int ANALYSIS_SIZE = 320;
+    private static final int MAX_FACES = 4;
+    private static final float MIN_FACE_CONFIDENCE = 0.3F;
+    // Face detector reports the eye distance, a face is roughly this many of them across
+    private static final float FACE_SIZE_IN_EYE_DISTANCES = 3F;
+
+    private SubjectDetector() {}
+
+    /**
+     * Small RGB_565 copy of the preview in display orientation, as needed by FaceDetector.
+     * Cheap enough for the UI thread, where the preview is guaranteed not to be recycled.
+     */
+    static Bitmap createAnalysisBitmap(RotateBitmap preview) {
+        float scale = Math.min(1F, (float) ANALYSIS_SIZE / Math.max(preview.getWidth(), preview.getHeight()));
+        int width = Math.max(2, Math.round(preview.getWidth() * scale) & ~1); // FaceDetector needs even width
+        int height = Math.max(1, Math.round(preview.getHeight() * scale));
+
+        Bitmap analysis = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        Matrix matrix = new Matrix(preview.getRotateMatrix());
+        matrix.postScale((float) width / preview.getWidth(), (float) height / preview.getHeight());
+        new Canvas(analysis).drawBitmap(preview.getBitmap(), matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return analysis;
+    }
+
+    /**
+     * @return Bounds of the subject relative to the analysis bitmap, from 0 to 1 on both axes
+     */
+    static RectF findSubject(Bitmap analysis) {
+        RectF subject = findFaces(analysis);
+        if (subject == null) {
+            subject = findEdgeEnergy(analysis);
+        }
+        subject.left /= analysis.getWidth();
+        subject.right /= analysis.getWidth();
+        subject.top /= analysis.getHeight();
+        subject.bottom /= analysis.getHeight();
+        return subject;
+    }
+
+    private static RectF findFaces(Bitmap analysis) {
+        FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACES];
+        int found = new FaceDetector(analysis.getWidth(), analysis.getHeight(), MAX_FACES)
+                .findFaces(analysis, faces);
+
+        RectF bounds = null;
+        PointF mid = new PointF();
+        for (int i = 0; i < found; i++) {
+            if (faces[i].confidence() < MIN_FACE_CONFIDENCE) continue;
+            faces[i].getMidPoint(mid);
+            float half = faces[i].eyesDistance() * FACE_SIZE_IN_EYE_DISTANCES / 2;
+            RectF face = new RectF(mid.x - half, mid.y - half, mid.x + half, mid.y + half);
+            if (bounds == null) {
+                bounds = face;
+            } else {
+                bounds.union(face);
+            }
+        }
+        return bounds;
+    }
+
+    // Centroid and spread of the pixels with above average luminance gradient
+    private static RectF findEdgeEnergy(Bitmap analysis) {
+        int width = analysis.getWidth();
+        int height = analysis.getHeight();
+        int[] pixels = new int[width * height];
+        analysis.getPixels(pixels, 0, width, 0, 0, width, height);
+        for (int i = 0; i < pixels.length; i++) {
+            int p = pixels[i];
+            pixels[i] = (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+        }
+
+        int[] energy = new int[width * height];
+        long total = 0;
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int i = y * width + x;
+                int e = Math.abs(pixels[i + 1] - pixels[i - 1]) + Math.abs(pixels[i + width] - pixels[i - width]);
+                energy[i] = e;
+                total += e;
+            }
+        }
+        int interior = Math.max(1, (width - 2) * (height - 2));
+        int threshold = (int) (total / interior);
+
+        double sum = 0, sumX = 0, sumY = 0, sumXX = 0, sumYY = 0;
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int e = energy[y * width + x] - threshold;
+                if (e <= 0) continue;
+                sum += e;
+                sumX += (double) e * x;
+                sumY += (double) e * y;
+                sumXX += (double) e * x * x;
+                sumYY += (double) e * y * y;
+            }
+        }
+        if (sum == 0) {
+            // Flat image, no subject to find
+            return new RectF(width / 2F, height / 2F, width / 2F, height / 2F);
+        }
+        float cx = (float) (sumX / sum);
+        float cy = (float) (sumY / sum);
+        float spreadX = (float) Math.sqrt(Math.max(0, sumXX / sum - cx * cx));
+        float spreadY = (float) Math.sqrt(Math.max(0, sumYY / sum - cy * cy));
+        return new RectF(cx - spreadX, cy - spreadY, cx + spreadX, cy + spreadY);
+    }
+
+    /**
+     * Moves crop, in place, so it is centered on the subject, growing it to cover the subject
+     * while keeping its aspect ratio, and keeps it inside the image
+     */
+    static void fitCrop(RectF crop, RectF subject, float imageWidth, float imageHeight) {
+        float aspect = crop.width() / crop.height();
+        float width = Math.max(crop.width(), Math.max(subject.width(), subject.height() * aspect));
+        float height = width / aspect;
+        if (width > imageWidth) {
+            width = imageWidth;
+            height = width / aspect;
+        }
+        if (height > imageHeight) {
+            height = imageHeight;
+            width = height * aspect;
+        }
+
+        float left = Math.max(0, Math.min(imageWidth - width, subject.centerX() - width / 2));
+        float top = Math.max(0, Math.min(imageHeight - height, subject.centerY() - height / 2));
+        crop.set(left, top, left + width, top + height);
+    }
+
+}
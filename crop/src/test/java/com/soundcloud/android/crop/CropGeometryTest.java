@@ -0,0 +1,60 @@
+package com.soundcloud.android.crop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CropGeometryTest {
+
+    @Test
+    public void previewSampleSizeFitsMaxSize() {
+        assertEquals(1, CropGeometry.previewSampleSize(2048, 1536, 2048));
+        assertEquals(2, CropGeometry.previewSampleSize(4000, 3000, 2048));
+        assertEquals(4, CropGeometry.previewSampleSize(3000, 8000, 2048));
+    }
+
+    @Test
+    public void regionSampleSizeNeverGoesBelowRequestedSize() {
+        assertEquals(1, CropGeometry.regionSampleSize(1000, 1000, 600, 600));
+        assertEquals(2, CropGeometry.regionSampleSize(1000, 1000, 500, 500));
+        assertEquals(4, CropGeometry.regionSampleSize(3000, 2000, 600, 400));
+        assertEquals(1, CropGeometry.regionSampleSize(3000, 2000, 0, 0));
+    }
+
+    @Test
+    public void outputSizeKeepsAspectRatioWithinMaxSize() {
+        assertArrayEquals(new int[] { 400, 300 }, CropGeometry.outputSize(800, 600, 400, 400));
+        assertArrayEquals(new int[] { 300, 400 }, CropGeometry.outputSize(600, 800, 400, 400));
+        assertArrayEquals(new int[] { 200, 100 }, CropGeometry.outputSize(200, 100, 400, 400));
+        assertArrayEquals(new int[] { 800, 600 }, CropGeometry.outputSize(800, 600, 0, 0));
+    }
+
+    @Test
+    public void unrotateMapsDisplayRectBackToSource() {
+        // 400x300 source, displayed rotated as 300x400
+        int[] rect = { 10, 20, 110, 70 };
+        CropGeometry.unrotate(rect, 90, 400, 300);
+        assertArrayEquals(new int[] { 20, 190, 70, 290 }, rect);
+
+        rect = new int[] { 10, 20, 110, 70 };
+        CropGeometry.unrotate(rect, 180, 400, 300);
+        assertArrayEquals(new int[] { 290, 230, 390, 280 }, rect);
+
+        rect = new int[] { 10, 20, 110, 70 };
+        CropGeometry.unrotate(rect, 270, 400, 300);
+        assertArrayEquals(new int[] { 330, 10, 380, 110 }, rect);
+
+        rect = new int[] { 10, 20, 110, 70 };
+        CropGeometry.unrotate(rect, 0, 400, 300);
+        assertArrayEquals(new int[] { 10, 20, 110, 70 }, rect);
+    }
+
+    @Test
+    public void defaultCropRectIsCenteredWithinAspect() {
+        assertArrayEquals(new int[] { 80, 30, 320, 270 }, CropGeometry.defaultCropRect(400, 300, 0, 0));
+        assertArrayEquals(new int[] { 80, 82, 320, 217 }, CropGeometry.defaultCropRect(400, 300, 16, 9));
+        assertArrayEquals(new int[] { 110, 30, 290, 270 }, CropGeometry.defaultCropRect(400, 300, 3, 4));
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.soundcloud.android.crop;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegCropperTest {
+
+    @Test
+    public void cropsOnlyOnBlockBoundaries() {
+        JpegCropper cropper = JpegCropper.parse(jpeg(40, 24, 0));
+        assertEquals(40, cropper.getWidth());
+        assertEquals(24, cropper.getHeight());
+        assertTrue(cropper.canCrop(8, 16, 37, 24));
+        assertFalse(cropper.canCrop(4, 16, 37, 24));
+        assertFalse(cropper.canCrop(8, 16, 41, 24));
+    }
+
+    @Test
+    public void rejectsDataOtherThanBaselineJpeg() {
+        assertNull(JpegCropper.parse(new byte[] { 'G', 'I', 'F', '8', '9', 'a' }));
+        byte[] progressive = jpeg(40, 24, 0);
+        progressive[indexOf(progressive, 0xC0) + 1] = (byte) 0xC2;
+        assertNull(JpegCropper.parse(progressive));
+    }
+
+    @Test
+    public void croppedImageHasCropSize() throws IOException {
+        byte[] cropped = JpegCropper.parse(jpeg(40, 24, 0)).crop(8, 8, 29, 24);
+        JpegCropper result = JpegCropper.parse(cropped);
+        assertEquals(21, result.getWidth());
+        assertEquals(16, result.getHeight());
+    }
+
+    @Test
+    public void cropOfCropMatchesDirectCrop() throws IOException {
+        JpegCropper cropper = JpegCropper.parse(jpeg(40, 24, 0));
+        byte[] twice = JpegCropper.parse(cropper.crop(8, 0, 40, 24)).crop(8, 8, 24, 24);
+        assertArrayEquals(cropper.crop(16, 8, 32, 24), twice);
+    }
+
+    @Test
+    public void restartMarkersDoNotChangeCrop() throws IOException {
+        byte[] plain = JpegCropper.parse(jpeg(40, 24, 0)).crop(8, 8, 32, 24);
+        byte[] restarts = JpegCropper.parse(jpeg(40, 24, 3)).crop(8, 8, 32, 24);
+        assertArrayEquals(plain, restarts);
+    }
+
+    @Test
+    public void snapsRegionOutToBlockGrid() throws IOException {
+        JpegCropper cropper = JpegCropper.parse(color(64, 48));
+        int[] region = { 20, 9, 50, 40 };
+        cropper.snap(region);
+        assertArrayEquals(new int[] { 16, 0, 50, 40 }, region);
+        assertTrue(cropper.canCrop(16, 0, 50, 40));
+        assertFalse(cropper.canCrop(8, 0, 50, 40));
+    }
+
+    @Test
+    public void cropsSubsampledColorImageWithoutChangingPixels() throws IOException {
+        byte[] jpeg = color(64, 48);
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(jpeg));
+        BufferedImage cropped = ImageIO.read(new ByteArrayInputStream(JpegCropper.parse(jpeg).crop(16, 16, 61, 48)));
+        assertEquals(45, cropped.getWidth());
+        assertEquals(32, cropped.getHeight());
+        // Away from the edges, where upsampling the chroma sees other neighbours
+        for (int y = 2; y < cropped.getHeight() - 2; y++) {
+            for (int x = 2; x < cropped.getWidth() - 2; x++) {
+                assertEquals(source.getRGB(x + 16, y + 16), cropped.getRGB(x, y));
+            }
+        }
+    }
+
+    // Baseline JPEG with 2x2 subsampled chroma, whose blocks have AC coefficients
+    private static byte[] color(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | ((x ^ y) * 8 & 0xFF) << 8 | (y * 5));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    // Grayscale baseline JPEG whose blocks only have a DC coefficient, 3 times their index
+    private static byte[] jpeg(int width, int height, int restartInterval) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, 0xFF, 0xD8);
+        write(out, 0xFF, 0xDB, 0x00, 0x43, 0x00);
+        for (int i = 0; i < 64; i++) {
+            out.write(1);
+        }
+        write(out, 0xFF, 0xC0, 0x00, 0x0B, 0x08, height >> 8, height, width >> 8, width, 0x01, 0x01, 0x11, 0x00);
+        // DC categories 0 to 11 all coded in 4 bits as their value, AC only end of block as 0
+        write(out, 0xFF, 0xC4, 0x00, 0x31, 0x00, 0, 0, 0, 12, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        for (int i = 0; i < 12; i++) {
+            out.write(i);
+        }
+        write(out, 0x10, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x00);
+        if (restartInterval > 0) {
+            write(out, 0xFF, 0xDD, 0x00, 0x04, restartInterval >> 8, restartInterval);
+        }
+        write(out, 0xFF, 0xDA, 0x00, 0x08, 0x01, 0x01, 0x00, 0x00, 0x3F, 0x00);
+
+        int blocks = ((width + 7) / 8) * ((height + 7) / 8);
+        long bits = 0;
+        int count = 0;
+        int prediction = 0;
+        for (int i = 0; i < blocks; i++) {
+            if (restartInterval > 0 && i > 0 && i % restartInterval == 0) {
+                count = pad(out, bits, count);
+                bits = 0;
+                write(out, 0xFF, 0xD0 + (i / restartInterval - 1) % 8);
+                prediction = 0;
+            }
+            int difference = i * 3 - prediction;
+            prediction = i * 3;
+            int size = 32 - Integer.numberOfLeadingZeros(difference);
+            bits = (bits << (4 + size + 1)) | ((long) size << (size + 1)) | ((long) difference << 1);
+            count += 4 + size + 1;
+            while (count >= 8) {
+                count -= 8;
+                stuff(out, (int) (bits >>> count) & 0xFF);
+            }
+        }
+        pad(out, bits, count);
+        write(out, 0xFF, 0xD9);
+        return out.toByteArray();
+    }
+
+    private static int pad(ByteArrayOutputStream out, long bits, int count) {
+        if (count > 0) {
+            stuff(out, (int) ((bits << (8 - count)) | (0xFF >> count)) & 0xFF);
+        }
+        return 0;
+    }
+
+    private static void stuff(ByteArrayOutputStream out, int b) {
+        out.write(b);
+        if (b == 0xFF) {
+            out.write(0);
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+
+    private static int indexOf(byte[] data, int marker) {
+        for (int i = 0; i + 1 < data.length; i++) {
+            if ((data[i] & 0xFF) == 0xFF && (data[i + 1] & 0xFF) == marker) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}